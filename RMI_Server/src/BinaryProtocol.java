@@ -0,0 +1,132 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// The binary protocol, negotiated per connection on the same port as the text one: a client that opens with the
+// two bytes HELLO, VERSION speaks binary from then on. Words travel as UTF-8 exactly as given (no splitting on
+// commas, no lower casing), and every request carries an id that its reply echoes, so a client can keep many
+// requests in flight and match the replies up without relying on their order.
+//
+// Request:  int length of the rest, byte opcode, int request id, payload
+// Reply:    int length of the rest, int request id, byte status, payload
+//
+// INSERT  payload: word                      reply: OK + int words in the trie afterwards
+// QUERY   payload: word (a prefix, as query) reply: OK if found, NOT_FOUND if not
+// REMOVE  payload: word                      reply: OK if removed, NOT_FOUND if it was not there
+// SCAN    payload: int limit, int prefix length, prefix, cursor (the rest, empty for the first page)
+//                                            reply: OK + int count, then per word an int length and its bytes,
+//                                            then byte 1 if more words follow (pass the last one as the cursor) or 0
+// A request that can not be served gets ERROR (or RECOVERING during a degraded start) with a UTF-8 message.
+// A scan returns at most CommandProcessor.MAX_SCAN_LIMIT words whatever the limit, as text scan does. A word may hold
+// any character; text replies list it escaped (see CommandProcessor.escape).
+//
+// Lookups here are case-sensitive, while the text protocol lower cases every word and prefix it is given. A word
+// inserted here with capitals is found again only over binary; text clients see it in listings but can not name it.
+public class BinaryProtocol {
+    public static final byte HELLO = 0; // no text command starts with a zero byte
+    public static final byte VERSION = 2;
+
+    public static final byte INSERT = 1, QUERY = 2, REMOVE = 3, SCAN = 4;
+    public static final byte OK = 0, NOT_FOUND = 1, ERROR = 2, RECOVERING = 3;
+
+    public static final int REQUEST_HEADER_SIZE = 5;      // opcode and request id, after the length
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private Trie _trie;
+
+    public BinaryProtocol(Trie trie){
+        if(trie == null)
+            throw new IllegalArgumentException();
+        _trie = trie;
+    }
+
+    // Runs one request (the frame after its length field) and writes the whole reply frame to out
+    public void process(ByteBuffer request, DataOutputStream out) throws IOException{
+        byte opcode = request.get();
+        int requestId = request.getInt();
+        try{
+            if(_trie.isRecovering() && opcode != QUERY && opcode != SCAN){
+                reply(out, requestId, RECOVERING, "still recovering, try again later");
+                return;
+            }
+            switch(opcode){
+                case INSERT:
+                    String word = readWord(request);
+                    if(word.isEmpty()){
+                        reply(out, requestId, ERROR, "empty word");
+                        break;
+                    }
+                    int size = _trie.insert(word);
+                    out.writeInt(4 + 1 + 4);
+                    out.writeInt(requestId);
+                    out.writeByte(OK);
+                    out.writeInt(size);
+                    break;
+                case QUERY:
+                    reply(out, requestId, _trie.query(readWord(request)) ? OK : NOT_FOUND);
+                    break;
+                case REMOVE:
+                    reply(out, requestId, _trie.remove(readWord(request)) ? OK : NOT_FOUND);
+                    break;
+                case SCAN:
+                    int limit = request.getInt(), prefixLength = request.getInt();
+                    if(limit < 0 || prefixLength < 0 || prefixLength > request.remaining()){
+                        reply(out, requestId, ERROR, (limit < 0) ? "negative scan limit" : "bad prefix length");
+                        break;
+                    }
+                    String prefix = readWord(request, prefixLength), cursor = readWord(request);
+                    Iterator<String> words = _trie.words(prefix, cursor.isEmpty() ? null : cursor);
+                    List<byte[]> encoded = new ArrayList<>();
+                    int length = 4 + 1 + 4 + 1;
+                    for(int count = Math.min(limit, CommandProcessor.MAX_SCAN_LIMIT); count > 0 && words.hasNext(); --count){
+                        byte[] wordBytes = words.next().getBytes(StandardCharsets.UTF_8);
+                        encoded.add(wordBytes);
+                        length += 4 + wordBytes.length;
+                    }
+                    out.writeInt(length);
+                    out.writeInt(requestId);
+                    out.writeByte(OK);
+                    out.writeInt(encoded.size());
+                    for(byte[] wordBytes : encoded){
+                        out.writeInt(wordBytes.length);
+                        out.write(wordBytes);
+                    }
+                    out.writeByte(words.hasNext() ? 1 : 0);
+                    break;
+                default:
+                    reply(out, requestId, ERROR, "unknown opcode " + opcode);
+            }
+        }catch(RuntimeException e){
+            // a short or malformed payload, or a failure in the trie: the connection itself is still in sync
+            reply(out, requestId, ERROR, String.valueOf(e));
+        }
+    }
+
+    private static String readWord(ByteBuffer request){
+        return readWord(request, request.remaining());
+    }
+
+    private static String readWord(ByteBuffer request, int length){
+        String word = new String(request.array(), request.arrayOffset() + request.position(), length, StandardCharsets.UTF_8);
+        request.position(request.position() + length);
+        return word;
+    }
+
+    private static void reply(DataOutputStream out, int requestId, byte status) throws IOException{
+        out.writeInt(4 + 1);
+        out.writeInt(requestId);
+        out.writeByte(status);
+    }
+
+    private static void reply(DataOutputStream out, int requestId, byte status, String message) throws IOException{
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(4 + 1 + messageBytes.length);
+        out.writeInt(requestId);
+        out.writeByte(status);
+        out.write(messageBytes);
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// Negative lookups for Trie.query (-bloom). query asks whether any word starts with s, so every prefix of every word
+// is an item. Counters instead of bits let remove take a word back out: a word adds 1 for each of its prefixes,
+// and a counter that reaches its 4 bit maximum stays there (it can then only cause false positives).
+//
+// Blocked: all probes for an item fall into one block of BLOCK_COUNTERS counters, which is one 64 byte cache line,
+// so a lookup costs a single cache miss where the trie walk it saves costs one per level.
+//
+// Never a false negative as long as a word is added before it can be found and removed only after it is gone.
+public class BloomFilter {
+    private static final int MAGIC = 0x54424C4D; // "TBLM"
+    private static final int VERSION = 1;
+
+    private static final int PREFIXES_PER_WORD = 4;      // distinct prefixes a word adds on average (trie nodes per word)
+    private static final int COUNTERS_PER_ITEM = 10;     // about 1% false positives with PROBES probes
+    private static final int PROBES = 6;
+    private static final int BLOCK_COUNTERS = 128;       // 8 longs of 16 counters
+    private static final int LONGS_PER_BLOCK = BLOCK_COUNTERS / 16;
+    private static final long MAX_COUNT = 15;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+
+    private long _expectedWords;
+    private int _blocks;
+    private AtomicLongArray _counters;
+    private LongAdder _negatives = new LongAdder(), _falsePositives = new LongAdder(), _positives = new LongAdder();
+
+    public BloomFilter(long expectedWords){
+        if(expectedWords < 1)
+            throw new IllegalArgumentException("Expected word count must be positive: " + expectedWords);
+        long blocks = (expectedWords * PREFIXES_PER_WORD * COUNTERS_PER_ITEM + BLOCK_COUNTERS - 1) / BLOCK_COUNTERS;
+        if(blocks > Integer.MAX_VALUE / LONGS_PER_BLOCK)
+            throw new IllegalArgumentException("Expected word count too large: " + expectedWords);
+        _expectedWords = expectedWords;
+        _blocks = (int) blocks;
+        _counters = new AtomicLongArray(_blocks * LONGS_PER_BLOCK);
+    }
+
+    // an empty filter of the same size, for building a copy off to the side
+    public BloomFilter emptyCopy(){return new BloomFilter(_expectedWords);}
+
+    public void add(CharSequence word){
+        long hash = FNV_OFFSET;
+        for(int i = 0; i < word.length(); ++i){
+            hash = (hash ^ word.charAt(i)) * FNV_PRIME;
+            change(mix(hash), 1);
+        }
+    }
+
+    public void remove(CharSequence word){
+        long hash = FNV_OFFSET;
+        for(int i = 0; i < word.length(); ++i){
+            hash = (hash ^ word.charAt(i)) * FNV_PRIME;
+            change(mix(hash), -1);
+        }
+    }
+
+    // false only if no word added (and not removed since) starts with prefix; a false answer is counted as a saved walk
+    public boolean mightContainPrefix(CharSequence prefix){
+        long hash = FNV_OFFSET;
+        for(int i = 0; i < prefix.length(); ++i)
+            hash = (hash ^ prefix.charAt(i)) * FNV_PRIME;
+        hash = mix(hash);
+        int base = block(hash);
+        long probes = hash * 0x9E3779B97F4A7C15L;
+        for(int j = 0; j < PROBES; ++j){
+            int counter = (int) (probes >>> (57 - 7 * j)) & (BLOCK_COUNTERS - 1);
+            if(((_counters.get(base + (counter >>> 4)) >>> ((counter & 15) * 4)) & MAX_COUNT) == 0){
+                _negatives.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the outcome of a walk that mightContainPrefix let through
+    public void countLookup(boolean found){
+        if(found)
+            _positives.increment();
+        else
+            _falsePositives.increment();
+    }
+
+    private void change(long hash, int delta){
+        int base = block(hash);
+        long probes = hash * 0x9E3779B97F4A7C15L;
+        for(int j = 0; j < PROBES; ++j){
+            int counter = (int) (probes >>> (57 - 7 * j)) & (BLOCK_COUNTERS - 1);
+            int index = base + (counter >>> 4), shift = (counter & 15) * 4;
+            while(true){
+                long current = _counters.get(index);
+                long count = (current >>> shift) & MAX_COUNT;
+                if(count == MAX_COUNT || (count == 0 && delta < 0))
+                    break; // stuck at the maximum; never below zero
+                if(_counters.compareAndSet(index, current, current + ((long) delta << shift)))
+                    break;
+            }
+        }
+    }
+
+    private int block(long hash){
+        return (int) (((hash >>> 32) * _blocks) >>> 32) * LONGS_PER_BLOCK;
+    }
+
+    // murmur3's finalizer, FNV's low bits are too regular to pick blocks and counters from
+    private static long mix(long hash){
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public long sizeBytes(){return (long) _counters.length() * 8;}
+
+    public String stats(){
+        long negatives = _negatives.sum(), falsePositives = _falsePositives.sum();
+        return "bloomNegatives=" + negatives + " bloomFalsePositives=" + falsePositives + " bloomPositives=" + _positives.sum()
+                + " bloomFalsePositiveRate=" + (negatives + falsePositives == 0 ? "n/a"
+                        : String.format("%.4f", falsePositives / (double) (negatives + falsePositives)))
+                + " bloomBytes=" + sizeBytes();
+    }
+
+    // Writes the counters with the snapshot cut they match, replacing file in one rename
+    public void save(File file, long cut) throws IOException{
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[8];
+        try(FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)){
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(cut);
+            out.writeLong(_expectedWords);
+            for(int i = 0; i < _counters.length(); ++i){
+                long value = _counters.get(i);
+                for(int b = 0; b < 8; ++b)
+                    bytes[b] = (byte) (value >>> (56 - 8 * b));
+                crc.update(bytes, 0, 8);
+                out.writeLong(value);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            fileOutputStream.getFD().sync();
+        }
+        if(!temporaryFile.renameTo(file)){
+            file.delete();
+            if(!temporaryFile.renameTo(file))
+                throw new IOException("Unable to move " + temporaryFile + " to " + file);
+        }
+    }
+
+    // The filter saved in file if it matches the snapshot cut and the expected word count, otherwise null
+    public static BloomFilter load(File file, long cut, long expectedWords) throws IOException{
+        if(!file.exists())
+            return null;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != cut || in.readLong() != expectedWords)
+                return null;
+            BloomFilter filter = new BloomFilter(expectedWords);
+            CRC32 crc = new CRC32();
+            byte[] bytes = new byte[8];
+            for(int i = 0; i < filter._counters.length(); ++i){
+                in.readFully(bytes);
+                crc.update(bytes, 0, 8);
+                long value = 0;
+                for(int b = 0; b < 8; ++b)
+                    value = (value << 8) | (bytes[b] & 0xFF);
+                filter._counters.set(i, value);
+            }
+            return (in.readInt() == (int) crc.getValue()) ? filter : null;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Loads a word list (one word per line) into a Trie without inserting it word by word. The file is mapped into memory
+// and its lines are put into partitions by first byte, then every partition is sorted and built into finished
+// subtrees (word counts and completions included) off to the side, all on a ForkJoinPool. The subtrees are attached
+// under the root with one table swap and persisted as one batch, see Trie.attachLoadedSubtrees.
+// Built from sorted words a subtree takes one pass, shaped the way inserts would have shaped it, and nothing locks.
+//
+// Words are lower cased like the insert command's. Words starting with a character the root already has go through
+// insertAll instead, so a load into a trie that is in use merges with what it holds. A ShardedTrie gets each subtree
+// built for and attached to the shard its first character belongs to.
+public class BulkLoader {
+    private static final int SCAN_CHUNK_BYTES = 4 * 1024 * 1024; // split no further when putting lines into partitions
+    private static final int PARTITIONS = 256;                   // one per first byte, upper case ASCII folded
+    private static final int INSERT_BATCH_SIZE = 4096;           // words per insertAll when merging
+
+    private Trie _trie;
+    private int _parallelism;
+
+    public BulkLoader(Trie trie, int parallelism){
+        if(trie == null || parallelism < 1)
+            throw new IllegalArgumentException();
+        _trie = trie;
+        _parallelism = parallelism;
+    }
+
+    // Adds the words of file the trie does not hold yet and returns how many that were
+    public int load(File file) throws IOException{
+        MappedByteBuffer buffer;
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")){
+            FileChannel channel = in.getChannel();
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Word list is over 2GB, split it up: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(_parallelism);
+        try{
+            List<Lines> chunks = Collections.synchronizedList(new ArrayList<Lines>());
+            pool.invoke(new ScanTask(buffer, 0, buffer.limit(), chunks));
+
+            List<BuildTask> builds = new ArrayList<>();
+            for(int partition = 0; partition < PARTITIONS; ++partition){
+                int lineCount = 0;
+                for(Lines lines : chunks)
+                    lineCount += lines._counts[partition];
+                if(lineCount > 0)
+                    builds.add(new BuildTask(buffer, chunks, partition, lineCount));
+            }
+            for(BuildTask build : builds)
+                pool.execute(build);
+
+            int added = 0;
+            List<Subtree> subtrees = new ArrayList<>();
+            for(BuildTask build : builds){
+                added += build.join();
+                subtrees.addAll(build._subtrees);
+            }
+            return added + attach(subtrees);
+        }finally{
+            pool.shutdown();
+        }
+    }
+
+    // attaches the built subtrees, inserting the words of any a root turned away; returns the number of words added
+    private int attach(List<Subtree> subtrees) throws IOException{
+        int added = 0;
+        List<Subtree> rest = new ArrayList<>(subtrees);
+        while(!rest.isEmpty()){
+            // all subtrees for one trie (or shard) at a time
+            Trie target = rest.get(0)._target;
+            List<Subtree> batch = new ArrayList<>();
+            for(Iterator<Subtree> subtree = rest.iterator(); subtree.hasNext(); ){
+                Subtree next = subtree.next();
+                if(next._target == target){
+                    batch.add(next);
+                    subtree.remove();
+                }
+            }
+            char[] keys = new char[batch.size()];
+            char[][] labels = new char[batch.size()][];
+            Trie.TrieNode[] nodes = new Trie.TrieNode[batch.size()];
+            for(int k = 0; k < keys.length; ++k){
+                keys[k] = batch.get(k)._key;
+                labels[k] = batch.get(k)._label;
+                nodes[k] = batch.get(k)._node;
+            }
+            boolean[] attached = target.attachLoadedSubtrees(keys, labels, nodes);
+
+            BloomFilter bloom = target.bloomFilter();
+            for(int k = 0; k < keys.length; ++k){
+                Subtree subtree = batch.get(k);
+                if(attached[k]){
+                    added += subtree._to - subtree._from;
+                    continue;
+                }
+                target.discardLoadedSubtree(subtree._node);
+                if(bloom != null)
+                    for(int w = subtree._from; w < subtree._to; ++w)
+                        bloom.remove(subtree._words[w]); // insertAll adds them itself
+                added += insertWords(subtree._words, subtree._from, subtree._to);
+            }
+        }
+        return added;
+    }
+
+    private int insertWords(String[] words, int from, int to){
+        int added = 0;
+        for(int start = from; start < to; start += INSERT_BATCH_SIZE){
+            String[] batch = Arrays.copyOfRange(words, start, Math.min(to, start + INSERT_BATCH_SIZE));
+            boolean[] wasAdded = new boolean[batch.length];
+            _trie.insertAll(batch, wasAdded);
+            for(boolean wordAdded : wasAdded)
+                if(wordAdded)
+                    ++added;
+        }
+        return added;
+    }
+
+    // where the line after the one position is in starts, or limit
+    private static int nextLine(MappedByteBuffer buffer, int position, int limit){
+        while(position < limit && buffer.get(position) != '\n')
+            ++position;
+        return Math.min(position + 1, limit);
+    }
+
+    private static int partitionOf(byte firstByte){
+        return (firstByte >= 'A' && firstByte <= 'Z') ? firstByte + ('a' - 'A') : firstByte & 0xFF;
+    }
+
+    // the lower cased word on the line starting at start, without its line break
+    private static String wordAt(MappedByteBuffer buffer, int start){
+        int end = start;
+        boolean ascii = true;
+        for(byte thisByte; end < buffer.limit() && (thisByte = buffer.get(end)) != '\n'; ++end)
+            ascii &= thisByte >= 0;
+        if(end > start && buffer.get(end - 1) == '\r')
+            --end;
+        if(ascii){
+            char[] chars = new char[end - start];
+            for(int i = 0; i < chars.length; ++i){
+                byte thisByte = buffer.get(start + i);
+                chars[i] = (char)((thisByte >= 'A' && thisByte <= 'Z') ? thisByte + ('a' - 'A') : thisByte);
+            }
+            return new String(chars);
+        }
+        byte[] bytes = new byte[end - start];
+        for(int i = 0; i < bytes.length; ++i)
+            bytes[i] = buffer.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8).toLowerCase();
+    }
+
+    // where the lines of one part of the file start, by partition
+    private static class Lines {
+        int[][] _starts = new int[PARTITIONS][];
+        int[] _counts = new int[PARTITIONS];
+
+        void add(int partition, int start){
+            int[] starts = _starts[partition];
+            if(starts == null)
+                starts = _starts[partition] = new int[64];
+            else if(_counts[partition] == starts.length)
+                starts = _starts[partition] = Arrays.copyOf(starts, starts.length * 2);
+            starts[_counts[partition]++] = start;
+        }
+    }
+
+    // puts the lines starting in [from, to) into partitions, halving the range (at a line break) while it is large
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private transient MappedByteBuffer _buffer;
+        private int _from, _to;
+        private transient List<Lines> _chunks;
+
+        ScanTask(MappedByteBuffer buffer, int from, int to, List<Lines> chunks){
+            _buffer = buffer;
+            _from = from;
+            _to = to;
+            _chunks = chunks;
+        }
+
+        @Override
+        protected void compute(){
+            if(_to - _from > SCAN_CHUNK_BYTES){
+                int middle = nextLine(_buffer, _from + (_to - _from) / 2, _to);
+                if(middle < _to){
+                    invokeAll(new ScanTask(_buffer, _from, middle, _chunks), new ScanTask(_buffer, middle, _to, _chunks));
+                    return;
+                }
+            }
+            Lines lines = new Lines();
+            for(int start = _from; start < _to; start = nextLine(_buffer, start, _to))
+                lines.add(partitionOf(_buffer.get(start)), start);
+            _chunks.add(lines);
+        }
+    }
+
+    // the words of one partition starting with the same character, built into the node under the root's edge key + label
+    private static class Subtree {
+        Trie _target;
+        char _key;
+        char[] _label;
+        Trie.TrieNode _node;
+        String[] _words;
+        int _from, _to;
+    }
+
+    // Reads, sorts and builds one partition; returns the number of words it inserted word by word (first characters
+    // the root already has) and leaves the subtrees it built in _subtrees
+    private class BuildTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        private transient MappedByteBuffer _buffer;
+        private transient List<Lines> _chunks;
+        private int _partition, _lineCount;
+        transient List<Subtree> _subtrees = new ArrayList<>();
+
+        BuildTask(MappedByteBuffer buffer, List<Lines> chunks, int partition, int lineCount){
+            _buffer = buffer;
+            _chunks = chunks;
+            _partition = partition;
+            _lineCount = lineCount;
+        }
+
+        @Override
+        protected Integer compute(){
+            String[] words = new String[_lineCount];
+            int count = 0;
+            for(Lines lines : _chunks)
+                for(int k = 0; k < lines._counts[_partition]; ++k)
+                    words[count++] = wordAt(_buffer, lines._starts[_partition][k]);
+            Arrays.parallelSort(words); // forks into this pool
+
+            // no empty lines, duplicates or words of the frozen base
+            FrozenTrie frozenBase = _trie.frozenBase();
+            count = 0;
+            for(String word : words)
+                if(word.length() > 0 && (count == 0 || !word.equals(words[count - 1]))
+                        && (frozenBase == null || !frozenBase.containsWord(word)))
+                    words[count++] = word;
+
+            int inserted = 0;
+            for(int from = 0, to; from < count; from = to){
+                char key = words[from].charAt(0);
+                for(to = from + 1; to < count && words[to].charAt(0) == key; )
+                    ++to;
+                Trie target = _trie.shardOf(key);
+                if(target.root().children().slotOf(key) >= 0){
+                    inserted += insertWords(words, from, to);
+                    continue;
+                }
+                BloomFilter bloom = target.bloomFilter();
+                if(bloom != null)
+                    for(int w = from; w < to; ++w)
+                        bloom.add(words[w]); // before any query can find them
+                Trie.TrieNode holder = new SubtreeBuilder(target).build(words, from, to);
+                ChildTable<Trie.TrieNode> children = holder.children;
+                Subtree subtree = new Subtree();
+                subtree._target = target;
+                subtree._key = key;
+                subtree._label = children.labelAt(0);
+                subtree._node = children.childAt(0);
+                subtree._words = words;
+                subtree._from = from;
+                subtree._to = to;
+                _subtrees.add(subtree);
+            }
+            return inserted;
+        }
+    }
+
+    // Builds the nodes for sorted, distinct words in one pass. The nodes on the path of the last word are kept on a
+    // stack with the length of the prefix each spells; a new word pops those below the prefix it shares with the last
+    // one (no later word can go under them, so their counts and completions are final) and hangs its rest off the top.
+    private static class SubtreeBuilder {
+        private Trie _trie;
+        private boolean _radix, _completions;
+        private Trie.TrieNode[] _nodes = new Trie.TrieNode[16];
+        private int[] _depths = new int[16];
+        private int _size;
+
+        SubtreeBuilder(Trie trie){
+            _trie = trie;
+            _radix = trie.isRadix();
+            _completions = trie.hasCompletions();
+        }
+
+        // a node that is never attached itself, holding the edge to the subtree of words[from, to)
+        Trie.TrieNode build(String[] words, int from, int to){
+            Trie.TrieNode holder = _trie.new TrieNode(-1);
+            _size = 0;
+            push(holder, 0);
+            String previous = "";
+            for(int w = from; w < to; ++w){
+                String word = words[w];
+                int shared = 0;
+                while(shared < previous.length() && shared < word.length() && previous.charAt(shared) == word.charAt(shared))
+                    ++shared;
+
+                Trie.TrieNode closed = null;
+                int closedDepth = 0;
+                while(_depths[_size - 1] > shared){
+                    closed = _nodes[--_size];
+                    closedDepth = _depths[_size];
+                    finish(closed, previous, closedDepth);
+                }
+                if(_depths[_size - 1] < shared){
+                    // radix mode: the edge to closed runs past the shared prefix, split it there
+                    Trie.TrieNode parent = _nodes[_size - 1];
+                    int parentDepth = _depths[_size - 1];
+                    char key = previous.charAt(parentDepth), childKey = previous.charAt(shared);
+                    char[] middleLabel = previous.substring(parentDepth + 1, shared).toCharArray();
+                    char[] childLabel = previous.substring(shared + 1, closedDepth).toCharArray();
+                    Trie.TrieNode middle = _trie.newLoadedNode(parent, key, middleLabel, false);
+                    _trie.relinkLoadedNode(closed, middle, childKey, childLabel);
+                    middle.children = ChildTable.<Trie.TrieNode>empty().with(childKey, childLabel, closed);
+                    parent.children = parent.children.with(key, middleLabel, middle);
+                    push(middle, shared);
+                }
+
+                // words are distinct and sorted, so the rest of the word is never empty
+                Trie.TrieNode top = _nodes[_size - 1];
+                if(_radix){
+                    char[] label = word.substring(shared + 1).toCharArray();
+                    Trie.TrieNode leaf = _trie.newLoadedNode(top, word.charAt(shared), label, true);
+                    top.children = top.children.with(word.charAt(shared), label, leaf);
+                    push(leaf, word.length());
+                }
+                else{
+                    for(int i = shared; i < word.length(); ++i){
+                        Trie.TrieNode next = _trie.newLoadedNode(top, word.charAt(i), null, i + 1 == word.length());
+                        top.children = top.children.with(word.charAt(i), next);
+                        push(next, i + 1);
+                        top = next;
+                    }
+                }
+                previous = word;
+            }
+            while(_size > 1){
+                --_size;
+                finish(_nodes[_size], previous, _depths[_size]);
+            }
+            _nodes[0] = null;
+            return holder;
+        }
+
+        private void push(Trie.TrieNode node, int depth){
+            if(_size == _nodes.length){
+                _nodes = Arrays.copyOf(_nodes, _size * 2);
+                _depths = Arrays.copyOf(_depths, _size * 2);
+            }
+            _nodes[_size] = node;
+            _depths[_size++] = depth;
+        }
+
+        // node spells the first depth characters of previous, the last word, which is under it
+        private void finish(Trie.TrieNode node, String previous, int depth){
+            int wordCount = node.aword ? 1 : 0;
+            ChildTable<Trie.TrieNode> children = node.children;
+            for(int slot = 0; slot < children.slotCount(); ++slot)
+                if(children.childAt(slot) != null)
+                    wordCount += children.childAt(slot)._subtreeWords;
+            node._subtreeWords = wordCount;
+            if(_completions)
+                node._completions = TrieCompletions.recompute(node, previous.substring(0, depth));
+        }
+    }
+
+    // Prepares the files a server starts from, using the same trie name as ServerMain:
+    //   java BulkLoader <word list> [-radix] [-fs | -wal | -frozen <file>]
+    // -fs and -wal load on top of what the node store or snapshot and log already hold; -frozen writes a frozen
+    // file of the words for -frozen; with neither the words are loaded and counted only.
+    public static void main(String[] args) throws Exception{
+        if(args.length < 1)
+            throw new IllegalArgumentException("Usage: java BulkLoader <word list> [-radix] [-fs | -wal | -frozen <file>]");
+        boolean useRadix = false, useFs = false, useWal = false;
+        String frozenFile = null;
+        for(int i = 1; i < args.length; ++i){
+            if(args[i].equals("-radix"))
+                useRadix = true;
+            else if(args[i].equals("-fs"))
+                useFs = true;
+            else if(args[i].equals("-wal"))
+                useWal = true;
+            else if(args[i].equals("-frozen")){
+                if(i + 1 >= args.length)
+                    throw new IllegalArgumentException("-frozen needs a file name");
+                frozenFile = args[++i];
+            }
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+        if((useFs ? 1 : 0) + (useWal ? 1 : 0) + (frozenFile != null ? 1 : 0) > 1)
+            throw new IllegalArgumentException("-fs, -wal and -frozen are different outputs, pick one");
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        Trie trie = new Trie("Test_Trie", useFs ? Trie.openNodeStore("Test_Trie", NodeStore.ForcePolicy.PERIODIC) : null, useRadix);
+        TrieSnapshot snapshotter = null;
+        if(useWal)
+            snapshotter = TrieSnapshot.recover(trie, "Trie_Test_Trie", false, parallelism, 0, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        long start = System.nanoTime();
+        int added = new BulkLoader(trie, parallelism).load(new File(args[0]));
+        System.out.println("Loaded " + added + " new words (" + trie.size() + " in all) from " + args[0] + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms with " + parallelism + " threads");
+
+        if(frozenFile != null){
+            FrozenTrie frozenTrie = FrozenTrie.freeze(trie, new File(frozenFile));
+            System.out.println("Froze " + frozenTrie.wordCount() + " words into " + frozenFile);
+        }
+        if(snapshotter != null)
+            snapshotter.stop();
+        trie.close();
+    }
+}
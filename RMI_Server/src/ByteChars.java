@@ -0,0 +1,37 @@
+import java.nio.charset.StandardCharsets;
+
+// A CharSequence over a slice of a byte array holding single byte (ASCII) characters. It is re-pointed at each new
+// slice instead of being copied into a String, so the hot command path can run without allocating.
+public class ByteChars implements CharSequence {
+    private byte[] _bytes;
+    private int _start, _length;
+
+    public ByteChars set(byte[] bytes, int start, int length){
+        if(bytes == null || start < 0 || length < 0 || start + length > bytes.length)
+            throw new IllegalArgumentException();
+        _bytes = bytes;
+        _start = start;
+        _length = length;
+        return this;
+    }
+
+    @Override
+    public int length(){return _length;}
+
+    @Override
+    public char charAt(int index){
+        if(index < 0 || index >= _length)
+            throw new IndexOutOfBoundsException("" + index);
+        return (char)(_bytes[_start + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString(){
+        return new String(_bytes, _start, _length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.Serializable;
+
+// Immutable char -> child map used for the edges of a trie node. Nodes with a small or sparse fan-out keep their
+// keys in a sorted char[] with a parallel child array and are searched with a binary search; once a node has many
+// children packed into a narrow range of characters it switches to a table indexed directly by (ch - base).
+// Nothing is boxed, and every leaf shares the same empty table. Changes return a new table (copy on write), which is
+// what lets readers use a published table without locking.
+// An edge can also carry a label, the characters that follow its key on the way to the child (used by radix tries);
+// the labels array is only allocated once some edge actually has one.
+public final class ChildTable<T extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int SORTED_MAX_SIZE = 8;      // above this a dense node goes direct-indexed
+    private static final int DIRECT_MIN_SIZE = 4;      // below this a direct node goes back to sorted keys
+    private static final int DIRECT_MAX_SPREAD = 4;    // direct tables may be at most 3/4 empty
+
+    private static final ChildTable<?> EMPTY = new ChildTable<>(new char[0], new Serializable[0], null, (char)0, 0);
+    private static final char[] NO_LABEL = new char[0];
+
+    private final char[] _keys;              // sorted keys, null when direct-indexed
+    private final Serializable[] _children;  // parallel to _keys, or indexed by ch - _base
+    private final char[][] _labels;          // parallel to _children, null when no edge has a label
+    private final char _base;
+    private final int _size;
+
+    private ChildTable(char[] keys, Serializable[] children, char[][] labels, char base, int size){
+        _keys = keys;
+        _children = children;
+        _labels = labels;
+        _base = base;
+        _size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> ChildTable<T> empty(){return (ChildTable<T>) EMPTY;}
+
+    public int size(){return _size;}
+
+    public boolean isEmpty(){return _size == 0;}
+
+    @SuppressWarnings("unchecked")
+    public T get(char ch){
+        int slot = slotOf(ch);
+        return slot >= 0 ? (T) _children[slot] : null;
+    }
+
+    // slot holding ch, or -1
+    public int slotOf(char ch){
+        if(_keys == null){
+            int index = ch - _base;
+            return (index >= 0 && index < _children.length && _children[index] != null) ? index : -1;
+        }
+        int index = indexOf(ch);
+        return index >= 0 ? index : -1;
+    }
+
+    // Slots iterate the children in key order: slotCount() slots, some of which may be empty (childAt returns null)
+    public int slotCount(){return _children.length;}
+
+    public char keyAt(int slot){
+        return _keys == null ? (char)(_base + slot) : _keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T childAt(int slot){return (T) _children[slot];}
+
+    // never null, an edge without a label returns an empty array
+    public char[] labelAt(int slot){
+        return (_labels == null || _labels[slot] == null) ? NO_LABEL : _labels[slot];
+    }
+
+    private int indexOf(char ch){
+        int low = 0, high = _size - 1;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            char key = _keys[middle];
+            if(key < ch)
+                low = middle + 1;
+            else if(key > ch)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    // returns a table with ch mapped to child (replacing any existing child)
+    public ChildTable<T> with(char ch, T child){
+        return with(ch, null, child);
+    }
+
+    // same, with the edge labelled (null or empty for no label)
+    public ChildTable<T> with(char ch, char[] label, T child){
+        if(child == null)
+            throw new NullPointerException();
+        if(label != null && label.length == 0)
+            label = null;
+
+        if(_keys == null){
+            int index = ch - _base;
+            if(index >= 0 && index < _children.length){
+                Serializable[] children = _children.clone();
+                char[][] labels = withLabel(_labels, children.length, index, label);
+                int size = _size + (children[index] == null ? 1 : 0);
+                children[index] = child;
+                return new ChildTable<>(null, children, labels, _base, size);
+            }
+            char low = (char)Math.min(ch, _base), high = (char)Math.max(ch, _base + _children.length - 1);
+            if(high - low + 1 <= (_size + 1) * DIRECT_MAX_SPREAD){
+                Serializable[] children = new Serializable[high - low + 1];
+                System.arraycopy(_children, 0, children, _base - low, _children.length);
+                children[ch - low] = child;
+                char[][] labels = null;
+                if(_labels != null){
+                    labels = new char[children.length][];
+                    System.arraycopy(_labels, 0, labels, _base - low, _labels.length);
+                }
+                return new ChildTable<>(null, children, withLabel(labels, children.length, ch - low, label), low, _size + 1);
+            }
+            return toSorted().with(ch, label, child);
+        }
+
+        int index = indexOf(ch);
+        if(index >= 0){
+            Serializable[] children = _children.clone();
+            children[index] = child;
+            return new ChildTable<>(_keys, children, withLabel(_labels, _size, index, label), (char)0, _size);
+        }
+
+        index = -(index + 1);
+        char[] keys = new char[_size + 1];
+        Serializable[] children = new Serializable[_size + 1];
+        System.arraycopy(_keys, 0, keys, 0, index);
+        System.arraycopy(_children, 0, children, 0, index);
+        keys[index] = ch;
+        children[index] = child;
+        System.arraycopy(_keys, index, keys, index + 1, _size - index);
+        System.arraycopy(_children, index, children, index + 1, _size - index);
+        char[][] labels = null;
+        if(_labels != null || label != null){
+            labels = new char[_size + 1][];
+            if(_labels != null){
+                System.arraycopy(_labels, 0, labels, 0, index);
+                System.arraycopy(_labels, index, labels, index + 1, _size - index);
+            }
+            labels[index] = label;
+        }
+
+        ChildTable<T> sorted = new ChildTable<>(keys, children, labels, (char)0, _size + 1);
+        int spread = keys[_size] - keys[0] + 1;
+        return (sorted._size > SORTED_MAX_SIZE && spread <= sorted._size * DIRECT_MAX_SPREAD) ? sorted.toDirect() : sorted;
+    }
+
+    private static char[][] withLabel(char[][] labels, int length, int index, char[] label){
+        if(labels == null && label == null)
+            return null;
+        char[][] newLabels = (labels == null) ? new char[length][] : labels.clone();
+        newLabels[index] = label;
+        return newLabels;
+    }
+
+    // returns a table without ch
+    public ChildTable<T> without(char ch){
+        if(get(ch) == null)
+            return this;
+        if(_size == 1)
+            return empty();
+
+        if(_keys == null){
+            if(_size - 1 < DIRECT_MIN_SIZE)
+                return toSorted().without(ch);
+            Serializable[] children = _children.clone();
+            children[ch - _base] = null;
+            return new ChildTable<>(null, children, withLabel(_labels, children.length, ch - _base, null), _base, _size - 1);
+        }
+
+        int index = indexOf(ch);
+        char[] keys = new char[_size - 1];
+        Serializable[] children = new Serializable[_size - 1];
+        System.arraycopy(_keys, 0, keys, 0, index);
+        System.arraycopy(_children, 0, children, 0, index);
+        System.arraycopy(_keys, index + 1, keys, index, _size - index - 1);
+        System.arraycopy(_children, index + 1, children, index, _size - index - 1);
+        char[][] labels = null;
+        if(_labels != null){
+            labels = new char[_size - 1][];
+            System.arraycopy(_labels, 0, labels, 0, index);
+            System.arraycopy(_labels, index + 1, labels, index, _size - index - 1);
+        }
+        return new ChildTable<>(keys, children, labels, (char)0, _size - 1);
+    }
+
+    private ChildTable<T> toDirect(){
+        char base = _keys[0];
+        Serializable[] children = new Serializable[_keys[_size - 1] - base + 1];
+        char[][] labels = (_labels == null) ? null : new char[children.length][];
+        for(int i = 0; i < _size; ++i) {
+            children[_keys[i] - base] = _children[i];
+            if(labels != null)
+                labels[_keys[i] - base] = _labels[i];
+        }
+        return new ChildTable<>(null, children, labels, base, _size);
+    }
+
+    private ChildTable<T> toSorted(){
+        char[] keys = new char[_size];
+        Serializable[] children = new Serializable[_size];
+        char[][] labels = (_labels == null) ? null : new char[_size][];
+        int next = 0;
+        for(int i = 0; i < _children.length; ++i){
+            if(_children[i] == null)
+                continue;
+            keys[next] = (char)(_base + i);
+            if(labels != null)
+                labels[next] = _labels[i];
+            children[next++] = _children[i];
+        }
+        return new ChildTable<>(keys, children, labels, (char)0, _size);
+    }
+
+    // keep the shared empty table shared across java serialization
+    private Object readResolve(){
+        return _size == 0 ? EMPTY : this;
+    }
+}
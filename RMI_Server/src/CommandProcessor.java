@@ -0,0 +1,390 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class CommandProcessor {
+    public static final String KILL_COMMAND = "kill";
+    public static final int MAX_SCAN_LIMIT = 100000; // words per scan reply, the client pages on with the cursor
+    public static final int MAX_FUZZY_EDITS = 3;     // the walk grows quickly with the edit budget
+    public static final String WORD_LINE_PREFIX = "w,"; // starts each word line of a scan or match reply
+
+    private static final byte[] QUERY_PREFIX = "query,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE_REPLY = "true\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE_REPLY = "false\n".getBytes(StandardCharsets.US_ASCII);
+
+    // where freeze may write, set by ServerMain -freezedir; freeze is refused while it is null
+    private static volatile File _freezeDirectory;
+    // where load may read word lists from, set by ServerMain -loaddir; load is refused while it is null
+    private static volatile File _loadDirectory;
+
+    private Trie _trie;
+
+    public CommandProcessor(Trie trie){
+        if(trie == null)
+            throw new IllegalArgumentException();
+        _trie = trie;
+    }
+
+    public Trie getTrie(){return _trie;}
+
+    // A word as text replies list it. Words put in over the binary protocol may hold anything, so a backslash, line
+    // break or comma in one is written as \\, \n, \r or \, and a listing keeps one word per line (or per comma).
+    public static String escape(String word){
+        StringBuilder escaped = null;
+        for(int i = 0; i < word.length(); ++i){
+            char c = word.charAt(i);
+            String replacement = (c == '\\') ? "\\\\" : (c == '\n') ? "\\n" : (c == '\r') ? "\\r" : (c == ',') ? "\\," : null;
+            if(replacement != null && escaped == null)
+                escaped = new StringBuilder(word.length() + 8).append(word, 0, i);
+            if(replacement != null)
+                escaped.append(replacement);
+            else if(escaped != null)
+                escaped.append(c);
+        }
+        return (escaped == null) ? word : escaped.toString();
+    }
+
+    public static String unescape(String text){
+        if(text.indexOf('\\') < 0)
+            return text;
+        StringBuilder word = new StringBuilder(text.length());
+        for(int i = 0; i < text.length(); ++i){
+            char c = text.charAt(i);
+            if(c == '\\' && i + 1 < text.length()){
+                c = text.charAt(++i);
+                c = (c == 'n') ? '\n' : (c == 'r') ? '\r' : c;
+            }
+            word.append(c);
+        }
+        return word.toString();
+    }
+
+    // the words of a comma separated complete or fuzzy reply, unescaped
+    public static List<String> splitWords(String reply){
+        List<String> words = new ArrayList<>();
+        if(reply.isEmpty())
+            return words;
+        int start = 0;
+        for(int i = 0; i < reply.length(); ++i){
+            if(reply.charAt(i) == '\\')
+                ++i;
+            else if(reply.charAt(i) == ','){
+                words.add(unescape(reply.substring(start, i)));
+                start = i + 1;
+            }
+        }
+        words.add(unescape(reply.substring(start)));
+        return words;
+    }
+
+    public static void setFreezeDirectory(File freezeDirectory){
+        if(freezeDirectory == null || !freezeDirectory.isDirectory())
+            throw new IllegalArgumentException("Not a directory: " + freezeDirectory);
+        _freezeDirectory = freezeDirectory;
+    }
+
+    public static void setLoadDirectory(File loadDirectory){
+        if(loadDirectory == null || !loadDirectory.isDirectory())
+            throw new IllegalArgumentException("Not a directory: " + loadDirectory);
+        _loadDirectory = loadDirectory;
+    }
+
+    // name as a file directly in directory, or null if it is a path (absolute, with separators or "..") or would
+    // end up anywhere else once links are followed
+    static File fileIn(File directory, String name) throws IOException{
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0
+                || name.indexOf('\\') >= 0 || new File(name).isAbsolute())
+            return null;
+        File canonicalDirectory = directory.getCanonicalFile();
+        File file = new File(canonicalDirectory, name).getCanonicalFile();
+        return canonicalDirectory.equals(file.getParentFile()) ? file : null;
+    }
+
+    // Runs a single protocol line ("command,parameter") against the trie and returns the reply line
+    // (without the trailing newline). The "kill" command is left to the transport, since only it knows what to stop.
+    public String process(String command){
+        String output = "";
+        String[] tokens;
+
+        try {
+            tokens = command.split(",");
+
+            if (tokens.length >= 2 && (tokens[0].equals("minsert") || tokens[0].equals("mquery")))
+                output = processBatch(command, tokens);
+            else if (isStreamed(command)) {
+                StringWriter reply = new StringWriter();
+                processStreamed(command, reply);
+                output = reply.toString().substring(0, reply.getBuffer().length() - 1);
+            }
+            else if ((tokens.length == 3 || tokens.length == 4) && tokens[0].equals("fuzzy"))
+                output = processFuzzy(command, tokens);
+            else if ((tokens.length == 3 || tokens.length == 4) && (tokens[0].equals("complete") || tokens[0].equals("weight")))
+                output = processRanked(command, tokens);
+            else if (tokens.length == 2) {
+                // we actually have a command
+                String parameter = tokens[1].toLowerCase();
+
+                // in degraded startup queries are answered from what has been restored so far, changes have to wait
+                if (_trie.isRecovering() && !tokens[0].equals("query") && !tokens[0].equals("toString")
+                        && !tokens[0].equals("stats") && !tokens[0].equals("count"))
+                    return "Error: still recovering, try again later: " + command;
+
+                switch (tokens[0]) {
+                    case "insert":
+                        output = "" + _trie.insert(parameter);
+                        break;
+                    case "query":
+                        output = "" + _trie.query(parameter);
+                        break;
+                    case "count":
+                        // how many words start with the prefix, without listing them
+                        output = "" + _trie.count(parameter);
+                        break;
+                    case "toString":
+                        StringBuilder listing = new StringBuilder();
+                        for (Iterator<String> words = _trie.words("", null); words.hasNext(); )
+                            listing.append(escape(words.next())).append(System.lineSeparator());
+                        output = listing.toString();
+                        break;
+                    case "stats":
+                        // -tiered memory figures: resident nodes against the budget, hit ratio, evictions;
+                        // -bloom: negative lookups answered by the filter and its observed false positive rate
+                        String tierStats = _trie.tierStats(), bloomStats = _trie.bloomStats();
+                        if (tierStats == null && bloomStats == null)
+                            output = "Tiered storage and the Bloom filter are off (start the server with -tiered <megabytes> or -bloom <expected words>)";
+                        else
+                            output = (tierStats == null) ? bloomStats : (bloomStats == null) ? tierStats : tierStats + " " + bloomStats;
+                        break;
+                    case "freeze":
+                        // compile the whole trie into a frozen file, to be served with -frozen <file>; the name (which
+                        // keeps its case) is a plain file name in the -freezedir directory, never a path
+                        File freezeDirectory = _freezeDirectory;
+                        if (freezeDirectory == null) {
+                            output = "Error: freeze is off (start the server with -freezedir <directory>)";
+                            break;
+                        }
+                        File frozenFile = fileIn(freezeDirectory, tokens[1]);
+                        if (frozenFile == null) {
+                            output = "Error: freeze takes a file name in the freeze directory, not a path: " + tokens[1];
+                            break;
+                        }
+                        FrozenTrie frozenTrie = FrozenTrie.freeze(_trie, frozenFile);
+                        output = "" + frozenTrie.wordCount();
+                        break;
+                    case "load":
+                        // bulk load a word list, one word per line, see BulkLoader; the name (which keeps its case) is a
+                        // plain file name in the -loaddir directory, as the words can then be read back by anyone.
+                        // Replies with the number of words added and the number in the trie afterwards
+                        File loadDirectory = _loadDirectory;
+                        if (loadDirectory == null) {
+                            output = "Error: load is off (start the server with -loaddir <directory>)";
+                            break;
+                        }
+                        File wordList = fileIn(loadDirectory, tokens[1]);
+                        if (wordList == null) {
+                            output = "Error: load takes a file name in the load directory, not a path: " + tokens[1];
+                            break;
+                        }
+                        try {
+                            int added = new BulkLoader(_trie, Runtime.getRuntime().availableProcessors()).load(wordList);
+                            output = added + "," + _trie.size();
+                        } catch (IOException e) {
+                            output = "Error loading " + tokens[1] + ": " + e;
+                        }
+                        break;
+                    default:
+                        output = "Unknown command: " + command;
+                }
+            }
+            else
+                output = "Error processing command: " + command;
+        } catch (NumberFormatException Fe) {
+            output = "Error parsing number in command \"" + command + "\": " + Fe.getMessage();
+        } catch (IllegalStateException e) {
+            // the trie can not serve it, e.g. its change log has failed (see TrieLog.checkWritable)
+            output = "Error: " + e.getMessage();
+        } catch(Exception ex){
+            ex.printStackTrace();
+        }
+        return output;
+    }
+
+    // scan and match replies can run to many lines, a transport should stream them with processStreamed
+    public static boolean isStreamed(String command){return command.startsWith("scan,") || command.startsWith("match,");}
+
+    public void processStreamed(String command, Writer out) throws IOException{
+        if (command.startsWith("match,"))
+            processMatch(command, out);
+        else
+            processScan(command, out);
+    }
+
+    // "scan,<prefix>,<limit>[,<cursor>]" lists the words starting with prefix, after cursor if there is one, at most
+    // limit (and MAX_SCAN_LIMIT) of them, one per line as "w,<word>" so that no word can be taken for the last line.
+    // That is "cursor,<word>" to pass back for the next page, or "end" once the scan is done. Words are escaped (see
+    // escape), the cursor is the rest of the line and is passed back as written. Words are written to out as they are
+    // found, so a transport can stream a long reply in chunks; the whole reply, last line included, ends in a newline.
+    public void processScan(String command, Writer out) throws IOException{
+        String[] tokens = command.split(",", 4);
+        if (tokens.length < 3) {
+            out.write("Error processing command: " + command + "\n");
+            return;
+        }
+        int limit;
+        try {
+            limit = Math.min(Integer.parseInt(tokens[2]), MAX_SCAN_LIMIT);
+        } catch (NumberFormatException Fe) {
+            out.write("Error parsing number in command \"" + command + "\": " + Fe.getMessage() + "\n");
+            return;
+        }
+        if (limit < 1) {
+            out.write("Error: scan limit must be positive: " + command + "\n");
+            return;
+        }
+
+        String cursor = (tokens.length == 4 && !tokens[3].isEmpty()) ? unescape(tokens[3]) : null;
+        Iterator<String> words = _trie.words(tokens[1].toLowerCase(), cursor);
+        String word = null;
+        for (int count = 0; count < limit && words.hasNext(); ++count) {
+            word = escape(words.next());
+            out.write(WORD_LINE_PREFIX);
+            out.write(word);
+            out.write('\n');
+        }
+        out.write(words.hasNext() ? "cursor," + word + "\n" : "end\n");
+    }
+
+    // "match,<pattern>,<limit>" lists the words the glob pattern matches (see GlobPattern), in sorted order, at most
+    // limit (and MAX_SCAN_LIMIT) of them, one per line as "w,<word>" like scan, then "more" if the limit cut the list
+    // short or "end". The walk only goes where the pattern allows and stops at the limit.
+    public void processMatch(String command, Writer out) throws IOException{
+        String[] tokens = command.split(",");
+        if (tokens.length != 3) {
+            out.write("Error processing command: " + command + "\n");
+            return;
+        }
+        int limit;
+        GlobPattern pattern;
+        try {
+            limit = Math.min(Integer.parseInt(tokens[2]), MAX_SCAN_LIMIT);
+            pattern = new GlobPattern(tokens[1].toLowerCase());
+        } catch (NumberFormatException Fe) {
+            out.write("Error parsing number in command \"" + command + "\": " + Fe.getMessage() + "\n");
+            return;
+        } catch (IllegalArgumentException e) {
+            out.write("Error: " + e.getMessage() + "\n");
+            return;
+        }
+        if (limit < 1) {
+            out.write("Error: match limit must be positive: " + command + "\n");
+            return;
+        }
+
+        Iterator<String> words = _trie.matches(pattern);
+        for (int count = 0; count < limit && words.hasNext(); ++count) {
+            out.write(WORD_LINE_PREFIX);
+            out.write(escape(words.next()));
+            out.write('\n');
+        }
+        out.write(words.hasNext() ? "more\n" : "end\n");
+    }
+
+    // The hot path: "query,<word>" answered straight from the bytes of the line in line[start, end), with the reply
+    // (newline included) taken from a constant, so nothing is allocated. The word is lower cased in place and chars,
+    // which the caller keeps per connection, is pointed at it. Returns null for any other line, or a word that is not
+    // plain ASCII or holds another comma; those go through process(String) with the usual results.
+    public byte[] processFast(byte[] line, int start, int end, ByteChars chars){
+        int wordStart = start + QUERY_PREFIX.length;
+        if(end <= wordStart)
+            return null;
+        for(int i = 0; i < QUERY_PREFIX.length; ++i)
+            if(line[start + i] != QUERY_PREFIX[i])
+                return null;
+        for(int i = wordStart; i < end; ++i){
+            byte thisByte = line[i];
+            if(thisByte < 0 || thisByte == ',')
+                return null;
+        }
+        for(int i = wordStart; i < end; ++i)
+            if(line[i] >= 'A' && line[i] <= 'Z')
+                line[i] += 'a' - 'A';
+        return _trie.query(chars.set(line, wordStart, end - wordStart)) ? TRUE_REPLY : FALSE_REPLY;
+    }
+
+    // "complete,<prefix>,<k>" replies with the k heaviest words starting with prefix, heaviest first, separated by
+    // commas; "complete,<prefix>,<k>,weighted" gives each as word:weight, for a Router to merge rankings with.
+    // "weight,<word>,<weight>" sets the weight complete ranks word by (otherwise how often it was inserted)
+    // and replies true, or false if word is not in the trie.
+    private String processRanked(String command, String[] tokens){
+        boolean weighted = tokens.length == 4;
+        if (weighted && !(tokens[0].equals("complete") && tokens[3].equals("weighted")))
+            return "Error processing command: " + command;
+        int number = Integer.parseInt(tokens[2]);
+        String parameter = tokens[1].toLowerCase();
+        if (tokens[0].equals("weight")) {
+            if (_trie.isRecovering())
+                return "Error: still recovering, try again later: " + command;
+            if (number < 1)
+                return "Error: weight must be positive: " + command;
+            return "" + _trie.setWeight(parameter, number);
+        }
+        if (number < 1)
+            return "Error: complete count must be positive: " + command;
+        StringBuilder reply = new StringBuilder();
+        for (TrieCompletions.Completion completion : _trie.ranked(parameter, Math.min(number, MAX_SCAN_LIMIT))) {
+            if (reply.length() > 0)
+                reply.append(',');
+            reply.append(escape(completion.word));
+            if (weighted)
+                reply.append(':').append(completion.weight);
+        }
+        return reply.toString();
+    }
+
+    // "fuzzy,<word>,<maxEdits>[,<limit>]" replies with the words at most maxEdits insertions, deletions or
+    // substitutions away from word, closest first, separated by commas; limit defaults to MAX_SCAN_LIMIT
+    private String processFuzzy(String command, String[] tokens){
+        int maxEdits = Integer.parseInt(tokens[2]);
+        int limit = (tokens.length == 4) ? Math.min(Integer.parseInt(tokens[3]), MAX_SCAN_LIMIT) : MAX_SCAN_LIMIT;
+        if (maxEdits < 0 || maxEdits > MAX_FUZZY_EDITS)
+            return "Error: fuzzy edits must be between 0 and " + MAX_FUZZY_EDITS + ": " + command;
+        if (limit < 1)
+            return "Error: fuzzy limit must be positive: " + command;
+        StringBuilder reply = new StringBuilder();
+        for (String word : _trie.fuzzy(tokens[1].toLowerCase(), maxEdits, limit)) {
+            if (reply.length() > 0)
+                reply.append(',');
+            reply.append(escape(word));
+        }
+        return reply.toString();
+    }
+
+    // "minsert,w1,w2,..." and "mquery,w1,w2,..." handle many words in one line. The reply has one character per word,
+    // in order: 1 if the word was added (minsert) or found (mquery), 0 if not. minsert follows it with the number of
+    // words in the trie afterwards, like insert: "101,5234".
+    private String processBatch(String command, String[] tokens){
+        if (_trie.isRecovering() && !tokens[0].equals("mquery"))
+            return "Error: still recovering, try again later: " + command;
+
+        String[] words = new String[tokens.length - 1];
+        for (int k = 0; k < words.length; ++k)
+            words[k] = tokens[k + 1].toLowerCase();
+        char[] results = new char[words.length];
+        if (tokens[0].equals("minsert")) {
+            // one pass over the trie and one wait for the log for the whole batch
+            boolean[] added = new boolean[words.length];
+            int size = _trie.insertAll(words, added);
+            for (int k = 0; k < words.length; ++k)
+                results[k] = added[k] ? '1' : '0';
+            return new String(results) + "," + size;
+        }
+        for (int k = 0; k < words.length; ++k)
+            results[k] = _trie.query(words[k]) ? '1' : '0';
+        return new String(results);
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Blocking, one-thread-per-connection command loop shared by the pooled WorkerThreads and the virtual thread mode.
+// Clients may pipeline: commands that have already arrived are run in order and their replies go out with one flush.
+public class ConnectionHandler {
+    // replies held back at most before a flush is forced, also how far a client can get ahead of the replies
+    private static final int MAX_PIPELINED_COMMANDS = 128;
+    private static final byte[] NO_REPLY = new byte[0]; // already written
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024; // chars of a scan or match reply sent at a time
+
+    private CommandProcessor _commandProcessor;
+    private BinaryProtocol _binaryProtocol;
+    private Runnable _onKill;
+
+    public ConnectionHandler(CommandProcessor commandProcessor, Runnable onKill){
+        if(commandProcessor == null || onKill == null)
+            throw new IllegalArgumentException();
+        _commandProcessor = commandProcessor;
+        _binaryProtocol = new BinaryProtocol(commandProcessor.getTrie());
+        _onKill = onKill;
+    }
+
+    public void processJob(Socket clientSocket) throws Exception {
+        String output = "";
+        String command = "";
+        InterruptedException interrupt = null;
+        PushbackInputStream input = new PushbackInputStream(clientSocket.getInputStream());
+        int firstByte = input.read();
+        if(firstByte == BinaryProtocol.HELLO){
+            processBinary(clientSocket, input);
+            return;
+        }
+        if(firstByte >= 0)
+            input.unread(firstByte);
+        LineReader in = new LineReader(input);
+        OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+        Charset charset = Charset.defaultCharset();
+        ByteChars chars = new ByteChars();
+        int unflushed = 0;
+        // a scan or match reply goes into out like any other, so it reaches the socket with the rest of the batch
+        // (or once out fills up) rather than on its own flush
+        Writer streamOut = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(out){
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException{
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush(){
+            }
+        }, charset), STREAM_CHUNK_SIZE);
+
+        while (!clientSocket.isClosed()) {
+            byte[] reply = null;
+            try {
+                output = "";
+                int length;
+                try {
+                    length = in.nextLine();
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedException();
+                }
+                catch(NullPointerException Npe){
+                    throw new InterruptedIOException();
+                }
+
+                // The end of the stream has been reached (the connection was lost)
+                if(length < 0)
+                    break;
+
+                // queries are answered from the read buffer without making any objects, see CommandProcessor.processFast
+                reply = _commandProcessor.processFast(in.buffer(), in.lineStart(), in.lineStart() + length, chars);
+                if(reply == null){
+                    command = in.lineString();
+                    if(command.equals(CommandProcessor.KILL_COMMAND)){
+                        output = "Killing server thread ...";
+                        _onKill.run();
+                        break;
+                    }
+
+                    if(CommandProcessor.isStreamed(command)){
+                        // a scan or match reply can run to many lines, stream it rather than building it up
+                        _commandProcessor.processStreamed(command, streamOut);
+                        streamOut.flush();
+                        reply = NO_REPLY;
+                    }
+                    else
+                        output = _commandProcessor.process(command);
+                }
+
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException();
+            } catch (InterruptedIOException Ie) {
+                //output += "\nServer thread exiting...";
+                //interrupt = new InterruptedException();
+                break;
+            } catch (InterruptedException intEx) {
+                interrupt = intEx;
+                break;
+            } catch (IOException IoE) {
+                break;
+            }
+            catch(Exception ex){
+                ex.printStackTrace();
+            }
+
+            try {
+                out.write((reply != null) ? reply : (output + "\n").getBytes(charset));
+                // a client that waits for each reply sees it right away, as nothing else is queued up behind it
+                if (++unflushed >= MAX_PIPELINED_COMMANDS || !in.hasLine()) {
+                    out.flush();
+                    unflushed = 0;
+                }
+            } catch (Exception e) {
+            }
+
+
+        }
+        try{
+            out.flush();
+            clientSocket.close();
+            in.close();
+            out.close();
+        }catch(Exception e){}
+
+        if (interrupt != null)
+            throw interrupt;
+
+    }
+
+    // The binary protocol loop, flushing on the same terms as the text one
+    private void processBinary(Socket clientSocket, InputStream input){
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))){
+            if(in.readByte() != BinaryProtocol.VERSION)
+                return;
+            int unflushed = 0;
+            byte[] frame = new byte[256];
+            while(!Thread.currentThread().isInterrupted()){
+                int length = in.readInt();
+                if(length < BinaryProtocol.REQUEST_HEADER_SIZE || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                    return; // out of sync with the client, nothing sensible left to do
+                if(length > frame.length)
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                in.readFully(frame, 0, length);
+                _binaryProtocol.process(ByteBuffer.wrap(frame, 0, length), out);
+                if(++unflushed >= MAX_PIPELINED_COMMANDS || in.available() == 0){
+                    out.flush();
+                    unflushed = 0;
+                }
+            }
+        }catch(IOException e){
+            // EOFException included: the client has gone
+        }finally{
+            try{clientSocket.close();}catch(Exception e){}
+        }
+    }
+
+    // Splits the input into lines like BufferedReader (without making a String unless asked to), but can also tell whether a whole line is already there, so
+    // deciding to flush never blocks on a client that has nothing more to send
+    private static class LineReader {
+        private static final int BUFFER_SIZE = 8192;
+
+        private InputStream _in;
+        private Charset _charset = Charset.defaultCharset();
+        private byte[] _buffer = new byte[BUFFER_SIZE];
+        private int _start, _end;
+        private int _scanned; // no line break in _buffer[_start.._scanned)
+        private int _lineStart, _lineLength;
+
+        LineReader(InputStream in){
+            _in = in;
+        }
+
+        // Length of the next line, which stays in buffer() from lineStart() on until the next call; -1 at the end of
+        // the stream
+        int nextLine() throws IOException{
+            while(!findLine()){
+                if(!fill())
+                    return (_end > _start) ? takeLine(_end, _end) : -1;
+            }
+            int lineBreak = _scanned;
+            return takeLine(lineBreak, lineBreak + 1);
+        }
+
+        byte[] buffer(){return _buffer;}
+
+        int lineStart(){return _lineStart;}
+
+        String lineString(){
+            return new String(_buffer, _lineStart, _lineLength, _charset);
+        }
+
+        // a read error is left for the next readLine to report
+        boolean hasLine(){
+            if(findLine())
+                return true;
+            try{
+                return _in.available() > 0 && fill() && findLine();
+            }catch(IOException e){
+                return false;
+            }
+        }
+
+        void close() throws IOException{
+            _in.close();
+        }
+
+        private boolean findLine(){
+            for(; _scanned < _end; ++_scanned)
+                if(_buffer[_scanned] == '\n')
+                    return true;
+            return false;
+        }
+
+        private int takeLine(int lineEnd, int next){
+            _lineStart = _start;
+            _lineLength = lineEnd - _start;
+            if(_lineLength > 0 && _buffer[lineEnd - 1] == '\r')
+                --_lineLength;
+            _start = _scanned = next;
+            return _lineLength;
+        }
+
+        // reads at least one more byte unless the stream has ended
+        private boolean fill() throws IOException{
+            if(_start > 0){
+                System.arraycopy(_buffer, _start, _buffer, 0, _end - _start);
+                _end -= _start;
+                _scanned -= _start;
+                _start = 0;
+            }
+            if(_end == _buffer.length)
+                _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+            int read = _in.read(_buffer, _end, _buffer.length - _end);
+            if(read < 0)
+                return false;
+            _end += read;
+            return true;
+        }
+    }
+}
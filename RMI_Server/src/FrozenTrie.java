@@ -0,0 +1,593 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Immutable, succinct trie read straight out of a memory-mapped file. The shape is stored as a LOUDS bit vector:
+// nodes are numbered in breadth-first order and every node writes one 1 bit per child followed by a 0, so the
+// whole tree costs about two bits per node plus its 16 bit edge character and a terminal bit. Small rank and
+// select directories make "find the children of node v" a couple of word lookups.
+//
+// File layout (big-endian, every section 8 byte aligned):
+//   header   magic, version, node count, word count, LOUDS bit count, select sample count (8 bytes reserved)
+//   LOUDS    long[]  bit i of the vector is bit (i % 64) of word i / 64
+//   terminal long[]  one bit per node, set if a word ends there
+//   rank     int[]   number of 1 bits before each 512 bit block
+//   select   int[]   position of every 256th 0 bit
+//   labels   char[]  edge character of every node (unused for the root)
+public class FrozenTrie {
+    private static final int MAGIC = 0x46525A54; // "FRZT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RANK_BLOCK_WORDS = 8;     // 512 bits per rank entry
+    private static final int SELECT_SAMPLE_RATE = 256; // zeros per select sample
+
+    private ByteBuffer _buffer;
+    private int _nodeCount, _wordCount;
+    private long _loudsBitCount;
+    private int _loudsOffset, _terminalOffset, _rankOffset, _selectOffset, _labelOffset;
+    private long _fileSize;
+
+    private FrozenTrie(ByteBuffer buffer, long fileSize) throws IOException{
+        _buffer = buffer;
+        _fileSize = fileSize;
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("Not a frozen trie file (bad magic or version)");
+        _nodeCount = buffer.getInt(8);
+        _wordCount = buffer.getInt(12);
+        _loudsBitCount = buffer.getInt(16) & 0xFFFFFFFFL;
+        int selectSampleCount = buffer.getInt(20);
+
+        int loudsWords = (int)((_loudsBitCount + 63) >>> 6);
+        _loudsOffset = HEADER_SIZE;
+        _terminalOffset = _loudsOffset + loudsWords * 8;
+        _rankOffset = _terminalOffset + ((_nodeCount + 63) >>> 6) * 8;
+        _selectOffset = _rankOffset + align8((loudsWords / RANK_BLOCK_WORDS + 1) * 4);
+        _labelOffset = _selectOffset + align8(selectSampleCount * 4);
+        if(_labelOffset + (long)_nodeCount * 2 > fileSize)
+            throw new IOException("Frozen trie file is truncated");
+    }
+
+    public static FrozenTrie load(File file) throws IOException{
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel()){
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Frozen trie files are limited to 2GB: " + file);
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new FrozenTrie(buffer, channel.size());
+        }
+    }
+
+    public int wordCount(){return _wordCount;}
+
+    public int nodeCount(){return _nodeCount;}
+
+    public long fileSize(){return _fileSize;}
+
+    // true if s is a prefix of some word, the same question Trie.query answers
+    public boolean query(CharSequence s){
+        return s != null && s.length() > 0 && find(s) >= 0;
+    }
+
+    public boolean containsWord(String s){
+        int node = (s == null) ? -1 : find(s);
+        return node >= 0 && isTerminal(node);
+    }
+
+    // Number of words starting with prefix. Breadth-first numbering keeps the descendants of a node on every level
+    // together, so the subtree is counted one level at a time: the children of the nodes lo..hi are the nodes from
+    // the first child of lo to the last child of hi.
+    public int countWords(String prefix){
+        if(prefix.isEmpty())
+            return _wordCount;
+        int low = find(prefix), high = low, count = 0;
+        while(low >= 0 && low <= high){
+            count += countTerminals(low, high);
+            int nextLow = rank1(childListStart(low)) + 1;
+            high = rank1(select0(high));
+            low = nextLow;
+        }
+        return count;
+    }
+
+    // terminal bits set among the nodes low..high
+    private int countTerminals(int low, int high){
+        int count = 0;
+        for(int word = low >>> 6; word <= high >>> 6; ++word){
+            long bits = _buffer.getLong(_terminalOffset + word * 8);
+            if(word == low >>> 6)
+                bits &= -1L << (low & 63);
+            if(word == high >>> 6 && (high & 63) != 63)
+                bits &= (1L << ((high & 63) + 1)) - 1;
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    // node reached by s, or -1
+    private int find(CharSequence s){
+        int node = 0;
+        for(int i = 0; i < s.length() && node >= 0; ++i)
+            node = child(node, s.charAt(i));
+        return node;
+    }
+
+    private int child(int node, char ch){
+        long start = childListStart(node);
+        int count = (int)(select0(node) - start);
+        int low = rank1(start) + 1, high = low + count - 1;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            char label = label(middle);
+            if(label < ch)
+                low = middle + 1;
+            else if(label > ch)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private long childListStart(int node){
+        return node == 0 ? 0 : select0(node - 1) + 1;
+    }
+
+    private boolean isTerminal(int node){
+        return (_buffer.getLong(_terminalOffset + (node >>> 6) * 8) >>> (node & 63) & 1) != 0;
+    }
+
+    private char label(int node){
+        return _buffer.getChar(_labelOffset + node * 2);
+    }
+
+    // number of 1 bits in [0, position)
+    private int rank1(long position){
+        int wordIndex = (int)(position >>> 6);
+        int block = wordIndex / RANK_BLOCK_WORDS;
+        int rank = _buffer.getInt(_rankOffset + block * 4);
+        for(int i = block * RANK_BLOCK_WORDS; i < wordIndex; ++i)
+            rank += Long.bitCount(_buffer.getLong(_loudsOffset + i * 8));
+        if((position & 63) != 0)
+            rank += Long.bitCount(_buffer.getLong(_loudsOffset + wordIndex * 8) & ((1L << (position & 63)) - 1));
+        return rank;
+    }
+
+    // position of the k-th (0 based) 0 bit
+    private long select0(int k){
+        int sample = k / SELECT_SAMPLE_RATE;
+        long position = _buffer.getInt(_selectOffset + sample * 4) & 0xFFFFFFFFL;
+        int remaining = k - sample * SELECT_SAMPLE_RATE;
+
+        int wordIndex = (int)(position >>> 6);
+        long zeros = ~_buffer.getLong(_loudsOffset + wordIndex * 8) & (-1L << (position & 63));
+        while(true){
+            int count = Long.bitCount(zeros);
+            if(remaining < count){
+                for(int i = 0; i < remaining; ++i)
+                    zeros &= zeros - 1;
+                return ((long)wordIndex << 6) + Long.numberOfTrailingZeros(zeros);
+            }
+            remaining -= count;
+            zeros = ~_buffer.getLong(_loudsOffset + ++wordIndex * 8);
+        }
+    }
+
+    // words in sorted order, the same order Trie.toString lists them in
+    public Iterator<String> words(){
+        return new WordIterator("", null);
+    }
+
+    // the words starting with prefix that sort after 'after' (null for all of them, otherwise it must start with
+    // prefix), in the same order
+    public Iterator<String> words(String prefix, String after){
+        if(prefix == null || (after != null && !after.startsWith(prefix)))
+            throw new IllegalArgumentException();
+        return new WordIterator(prefix, after);
+    }
+
+    // Adds the words within maxEdits of word to byDistance, by distance, in word order; see Trie.fuzzy
+    public void fuzzy(String word, int maxEdits, List<List<String>> byDistance){
+        if(_nodeCount == 0)
+            return;
+        // level l holds the children of a node on the path of length l, the row of that node is rows[l]
+        int[] nextChild = new int[16], lastChild = new int[16];
+        int[][] rows = new int[16][];
+        int depth = 1;
+        StringBuilder path = new StringBuilder();
+        rows[0] = Trie.firstEditRow(word);
+        if(isTerminal(0) && rows[0][word.length()] <= maxEdits)
+            byDistance.get(rows[0][word.length()]).add("");
+        long start = childListStart(0);
+        nextChild[0] = rank1(start) + 1;
+        lastChild[0] = nextChild[0] + (int)(select0(0) - start) - 1;
+        while(depth > 0){
+            int level = depth - 1;
+            if(nextChild[level] > lastChild[level]){
+                --depth;
+                continue;
+            }
+            int node = nextChild[level]++;
+            if(level + 1 == rows.length){
+                rows = Arrays.copyOf(rows, rows.length * 2);
+                nextChild = Arrays.copyOf(nextChild, nextChild.length * 2);
+                lastChild = Arrays.copyOf(lastChild, lastChild.length * 2);
+            }
+            if(rows[level + 1] == null)
+                rows[level + 1] = new int[word.length() + 1];
+            int[] row = rows[level + 1];
+            if(Trie.nextEditRow(rows[level], row, word, label(node)) > maxEdits)
+                continue;
+            path.setLength(level);
+            path.append(label(node));
+            if(isTerminal(node) && row[word.length()] <= maxEdits)
+                byDistance.get(row[word.length()]).add(path.toString());
+
+            start = childListStart(node);
+            nextChild[level + 1] = rank1(start) + 1;
+            lastChild[level + 1] = nextChild[level + 1] + (int)(select0(node) - start) - 1;
+            ++depth;
+        }
+    }
+
+    // the words pattern matches, in sorted order, found as they are asked for; see Trie.matches
+    public Iterator<String> matches(GlobPattern pattern){
+        return new MatchIterator(pattern);
+    }
+
+    // like WordIterator, with the pattern's states after the path to each level's parent
+    private class MatchIterator implements Iterator<String> {
+        private GlobPattern _pattern;
+        private int[] _nextChild = new int[16], _lastChild = new int[16];
+        private long[] _states = new long[16];
+        private int _depth;
+        private StringBuilder _word = new StringBuilder();
+        private String _next;
+
+        MatchIterator(GlobPattern pattern){
+            _pattern = pattern;
+            if(_nodeCount == 0)
+                return;
+            long states = pattern.start();
+            push(0, states);
+            if(isTerminal(0) && pattern.accepts(states))
+                _next = "";
+            else
+                advance();
+        }
+
+        private void push(int node, long states){
+            if(_depth == _nextChild.length){
+                _nextChild = Arrays.copyOf(_nextChild, _depth * 2);
+                _lastChild = Arrays.copyOf(_lastChild, _depth * 2);
+                _states = Arrays.copyOf(_states, _depth * 2);
+            }
+            int only = _pattern.onlyNext(states);
+            if(only >= 0){
+                // a single character can follow, find its child rather than trying them all
+                int child = child(node, (char) only);
+                _nextChild[_depth] = (child < 0) ? 1 : child;
+                _lastChild[_depth] = (child < 0) ? 0 : child;
+            }
+            else{
+                long start = childListStart(node);
+                _nextChild[_depth] = rank1(start) + 1;
+                _lastChild[_depth] = _nextChild[_depth] + (int)(select0(node) - start) - 1;
+            }
+            _states[_depth] = states;
+            ++_depth;
+        }
+
+        private void advance(){
+            _next = null;
+            while(_depth > 0){
+                int level = _depth - 1;
+                if(_nextChild[level] > _lastChild[level]){
+                    --_depth;
+                    continue;
+                }
+                int node = _nextChild[level]++;
+                long states = _pattern.step(_states[level], label(node));
+                if(states == 0)
+                    continue;
+                _word.setLength(level);
+                _word.append(label(node));
+                push(node, states);
+                if(isTerminal(node) && _pattern.accepts(states)){
+                    _next = _word.toString();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){return _next != null;}
+
+        @Override
+        public String next(){
+            if(_next == null)
+                throw new NoSuchElementException();
+            String word = _next;
+            advance();
+            return word;
+        }
+    }
+
+    private class WordIterator implements Iterator<String> {
+        // depth-first with an explicit stack: next child id and last child id per level
+        private int[] _nextChild = new int[16], _lastChild = new int[16];
+        private int _depth;
+        private StringBuilder _word = new StringBuilder();
+        private String _next;
+
+        WordIterator(String prefix, String after){
+            int node = (_nodeCount == 0) ? -1 : find(prefix);
+            if(node < 0)
+                return;
+            _word.append(prefix);
+            if(isTerminal(node) && after == null)
+                _next = prefix;
+            push(node);
+            if(after != null)
+                seek(prefix.length(), after);
+            if(_next == null)
+                advance();
+        }
+
+        // moves the stack just past after, from the level for after's first 'from' characters on
+        private void seek(int from, String after){
+            for(int i = from; i < after.length(); ++i){
+                int level = _depth - 1;
+                char ch = after.charAt(i);
+                int child = _nextChild[level];
+                while(child <= _lastChild[level] && label(child) < ch)
+                    ++child;
+                if(child > _lastChild[level] || label(child) != ch){
+                    _nextChild[level] = child;
+                    return;
+                }
+                _nextChild[level] = child + 1;
+                _word.append(ch);
+                push(child);
+            }
+        }
+
+        private void push(int node){
+            if(_depth == _nextChild.length){
+                _nextChild = Arrays.copyOf(_nextChild, _depth * 2);
+                _lastChild = Arrays.copyOf(_lastChild, _depth * 2);
+            }
+            long start = childListStart(node);
+            _nextChild[_depth] = rank1(start) + 1;
+            _lastChild[_depth] = _nextChild[_depth] + (int)(select0(node) - start) - 1;
+            ++_depth;
+        }
+
+        private void advance(){
+            _next = null;
+            while(_depth > 0){
+                int level = _depth - 1;
+                if(_nextChild[level] > _lastChild[level]){
+                    --_depth;
+                    if(_word.length() > 0)
+                        _word.setLength(_word.length() - 1);
+                    continue;
+                }
+                int node = _nextChild[level]++;
+                _word.append(label(node));
+                push(node);
+                if(isTerminal(node)){
+                    _next = _word.toString();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){return _next != null;}
+
+        @Override
+        public String next(){
+            if(_next == null)
+                throw new NoSuchElementException();
+            String word = _next;
+            advance();
+            return word;
+        }
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder stringBuilder = new StringBuilder();
+        for(Iterator<String> words = words(); words.hasNext(); )
+            stringBuilder.append(words.next()).append(System.lineSeparator());
+        return stringBuilder.toString();
+    }
+
+    private static int align8(int size){
+        return (size + 7) & ~7;
+    }
+
+    // One breadth-first position being frozen: a node of the current frozen base, a position in the mutable trie
+    // (a node, or part way along one of its labelled edges in radix mode), or both when they describe the same prefix.
+    private static class FreezePosition {
+        int _baseNode = -1;
+        Trie.TrieNode _trieNode;  // the node, or the child at the end of the edge we are part way along
+        char[] _label;            // remaining edge label when part way along an edge
+        int _labelOffset;
+        char _key;                // edge character leading here from the parent position
+
+        boolean insideEdge(){return _label != null && _labelOffset < _label.length;}
+    }
+
+    // Compiles everything the trie currently holds (its frozen base, if any, plus its mutable nodes) into a new
+    // frozen file. Writers may keep going meanwhile; each node is read once from its published children table.
+    public static FrozenTrie freeze(Trie trie, File file) throws IOException{
+        FrozenTrie base = trie.frozenBase();
+        LongBits louds = new LongBits(), terminal = new LongBits();
+        char[] labels = new char[1024];
+        int nodeCount = 0, wordCount = 0;
+
+        ArrayDeque<FreezePosition> queue = new ArrayDeque<>();
+        FreezePosition rootPosition = new FreezePosition();
+        rootPosition._baseNode = (base != null && base._nodeCount > 0) ? 0 : -1;
+        rootPosition._trieNode = trie.root();
+        queue.add(rootPosition);
+
+        ArrayList<FreezePosition> trieChildren = new ArrayList<>();
+        while(!queue.isEmpty()){
+            FreezePosition position = queue.poll();
+            int nodeId = nodeCount++;
+            boolean isWord = (position._baseNode >= 0 && base.isTerminal(position._baseNode))
+                    || (position._trieNode != null && !position.insideEdge() && position._trieNode.aword);
+            if(isWord){
+                terminal.set(nodeId);
+                ++wordCount;
+            }
+
+            // children on the mutable side, in key order
+            trieChildren.clear();
+            if(position._trieNode != null){
+                if(position.insideEdge()){
+                    FreezePosition next = new FreezePosition();
+                    next._trieNode = position._trieNode;
+                    next._label = position._label;
+                    next._labelOffset = position._labelOffset + 1;
+                    next._key = position._label[position._labelOffset];
+                    trieChildren.add(next);
+                }
+                else{
+                    ChildTable<Trie.TrieNode> children = position._trieNode.children();
+                    for(int i = 0; i < children.slotCount(); ++i){
+                        if(children.childAt(i) == null)
+                            continue;
+                        FreezePosition next = new FreezePosition();
+                        next._trieNode = children.childAt(i);
+                        next._label = children.labelAt(i);
+                        next._key = children.keyAt(i);
+                        trieChildren.add(next);
+                    }
+                }
+            }
+
+            // children on the frozen side, also in key order
+            int baseChild = 0, baseLastChild = -1;
+            if(position._baseNode >= 0){
+                long start = base.childListStart(position._baseNode);
+                baseChild = base.rank1(start) + 1;
+                baseLastChild = baseChild + (int)(base.select0(position._baseNode) - start) - 1;
+            }
+
+            // merge the two sorted child lists
+            int trieIndex = 0;
+            while(trieIndex < trieChildren.size() || baseChild <= baseLastChild){
+                char trieKey = (trieIndex < trieChildren.size()) ? trieChildren.get(trieIndex)._key : Character.MAX_VALUE;
+                char baseKey = (baseChild <= baseLastChild) ? base.label(baseChild) : Character.MAX_VALUE;
+                boolean takeTrie = trieIndex < trieChildren.size() && (baseChild > baseLastChild || trieKey <= baseKey);
+                boolean takeBase = baseChild <= baseLastChild && (trieIndex >= trieChildren.size() || baseKey <= trieKey);
+
+                FreezePosition child = takeTrie ? trieChildren.get(trieIndex++) : new FreezePosition();
+                if(takeBase)
+                    child._baseNode = baseChild++;
+
+                if(nodeCount + queue.size() >= labels.length)
+                    labels = Arrays.copyOf(labels, labels.length * 2);
+                labels[nodeCount + queue.size()] = takeTrie ? trieKey : baseKey;
+                louds.set(louds._length);
+                louds._length++;
+                queue.add(child);
+            }
+            louds._length++; // the 0 that ends this node's child list
+        }
+
+        write(file, louds, terminal, labels, nodeCount, wordCount);
+        return load(file);
+    }
+
+    private static void write(File file, LongBits louds, LongBits terminal, char[] labels, int nodeCount, int wordCount) throws IOException{
+        if(louds._length > 0xFFFFFFFFL)
+            throw new IOException("Trie too large to freeze: " + nodeCount + " nodes");
+
+        int loudsWords = (int)((louds._length + 63) >>> 6);
+        int rankEntries = loudsWords / RANK_BLOCK_WORDS + 1;
+        int zeroCount = nodeCount;
+        int selectSamples = (zeroCount + SELECT_SAMPLE_RATE - 1) / SELECT_SAMPLE_RATE;
+        long size = HEADER_SIZE + (long)loudsWords * 8 + (long)((nodeCount + 63) >>> 6) * 8
+                + align8(rankEntries * 4) + align8(selectSamples * 4) + (long)nodeCount * 2;
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Frozen trie files are limited to 2GB, this one would need " + size + " bytes");
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+            FileChannel channel = randomAccessFile.getChannel()){
+            randomAccessFile.setLength(size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(nodeCount).putInt(wordCount)
+                    .putInt((int)louds._length).putInt(selectSamples).putLong(0);
+
+            for(int i = 0; i < loudsWords; ++i)
+                buffer.putLong(louds.word(i));
+            for(int i = 0; i < (nodeCount + 63) >>> 6; ++i)
+                buffer.putLong(terminal.word(i));
+
+            int rank = 0;
+            for(int i = 0; i < rankEntries; ++i){
+                buffer.putInt(rank);
+                for(int j = i * RANK_BLOCK_WORDS; j < Math.min(loudsWords, (i + 1) * RANK_BLOCK_WORDS); ++j)
+                    rank += Long.bitCount(louds.word(j));
+            }
+            buffer.position(buffer.position() + align8(rankEntries * 4) - rankEntries * 4);
+
+            int zeros = 0;
+            for(long position = 0; position < louds._length; ++position){
+                if(louds.get(position))
+                    continue;
+                if(zeros % SELECT_SAMPLE_RATE == 0)
+                    buffer.putInt((int)position);
+                ++zeros;
+            }
+            buffer.position(buffer.position() + align8(selectSamples * 4) - selectSamples * 4);
+
+            for(int i = 0; i < nodeCount; ++i)
+                buffer.putChar(labels[i]);
+            buffer.force();
+        }
+        if(!temporaryFile.renameTo(file)){
+            file.delete();
+            if(!temporaryFile.renameTo(file))
+                throw new IOException("Unable to move " + temporaryFile + " to " + file);
+        }
+    }
+
+    // growable bit vector used while freezing
+    private static class LongBits {
+        private long[] _words = new long[64];
+        private long _length;
+
+        void set(long position){
+            int wordIndex = (int)(position >>> 6);
+            if(wordIndex >= _words.length)
+                _words = Arrays.copyOf(_words, Math.max(_words.length * 2, wordIndex + 1));
+            _words[wordIndex] |= 1L << (position & 63);
+        }
+
+        boolean get(long position){
+            int wordIndex = (int)(position >>> 6);
+            return wordIndex < _words.length && (_words[wordIndex] >>> (position & 63) & 1) != 0;
+        }
+
+        long word(int wordIndex){
+            return wordIndex < _words.length ? _words[wordIndex] : 0;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// A compiled glob for the match command: ? is any one character, * any run of characters (none included),
+// [abc], [a-z] and [!a-z] (or [^a-z]) a character class, and \ takes the next character literally.
+//
+// Run as a set of states over the pattern's elements, kept in one long: state i means the first i elements have
+// matched. A trie walk steps the set once per character along a path and leaves the subtree as soon as it is empty.
+public class GlobPattern {
+    public static final int MAX_ELEMENTS = 63;  // states 0..elements fit in a long
+
+    private static final byte LITERAL = 0, ANY = 1, STAR = 2, CLASS = 3;
+
+    private byte[] _kinds;
+    private char[] _literals;
+    private char[][] _ranges;      // CLASS: low, high pairs
+    private boolean[] _negated;
+    private long _accepting;
+
+    public GlobPattern(String pattern){
+        if(pattern == null)
+            throw new IllegalArgumentException();
+        List<Byte> kinds = new ArrayList<>();
+        List<Character> literals = new ArrayList<>();
+        List<char[]> ranges = new ArrayList<>();
+        List<Boolean> negated = new ArrayList<>();
+        for(int i = 0; i < pattern.length(); ++i){
+            char ch = pattern.charAt(i);
+            char[] classRanges = null;
+            boolean classNegated = false;
+            byte kind;
+            if(ch == '?')
+                kind = ANY;
+            else if(ch == '*'){
+                if(!kinds.isEmpty() && kinds.get(kinds.size() - 1) == STAR)
+                    continue; // ** is just *
+                kind = STAR;
+            }
+            else if(ch == '['){
+                int from = i + 1;
+                if(from < pattern.length() && (pattern.charAt(from) == '!' || pattern.charAt(from) == '^')){
+                    classNegated = true;
+                    ++from;
+                }
+                int end = pattern.indexOf(']', from + 1); // a ] first in the class is part of it
+                if(end < 0)
+                    throw new IllegalArgumentException("Unclosed [ in pattern: " + pattern);
+                StringBuilder pairs = new StringBuilder();
+                for(int j = from; j < end; ++j){
+                    char low = pattern.charAt(j), high = low;
+                    if(j + 2 < end && pattern.charAt(j + 1) == '-'){
+                        high = pattern.charAt(j + 2);
+                        j += 2;
+                    }
+                    if(high < low)
+                        throw new IllegalArgumentException("Bad range " + low + "-" + high + " in pattern: " + pattern);
+                    pairs.append(low).append(high);
+                }
+                classRanges = pairs.toString().toCharArray();
+                kind = CLASS;
+                i = end;
+            }
+            else{
+                if(ch == '\\' && i + 1 < pattern.length())
+                    ch = pattern.charAt(++i);
+                kind = LITERAL;
+            }
+            kinds.add(kind);
+            literals.add(ch);
+            ranges.add(classRanges);
+            negated.add(classNegated);
+        }
+        if(kinds.size() > MAX_ELEMENTS)
+            throw new IllegalArgumentException("Pattern has more than " + MAX_ELEMENTS + " elements: " + pattern);
+
+        _kinds = new byte[kinds.size()];
+        _literals = new char[kinds.size()];
+        _ranges = new char[kinds.size()][];
+        _negated = new boolean[kinds.size()];
+        for(int k = 0; k < _kinds.length; ++k){
+            _kinds[k] = kinds.get(k);
+            _literals[k] = literals.get(k);
+            _ranges[k] = ranges.get(k);
+            _negated[k] = negated.get(k);
+        }
+        _accepting = 1L << _kinds.length;
+    }
+
+    // the states before any character
+    public long start(){return closure(1L);}
+
+    // the states after ch, 0 if the pattern can no longer match
+    public long step(long states, char ch){
+        long next = 0;
+        for(long rest = states & ~_accepting; rest != 0; rest &= rest - 1){
+            int state = Long.numberOfTrailingZeros(rest);
+            if(_kinds[state] == STAR)
+                next |= 1L << state;
+            else if(matches(state, ch))
+                next |= 1L << (state + 1);
+        }
+        return closure(next);
+    }
+
+    public boolean accepts(long states){return (states & _accepting) != 0;}
+
+    // The one character the states can go on with, or -1 if there is more than one choice. Lets a walk look up a
+    // single child instead of trying them all.
+    public int onlyNext(long states){
+        long rest = states & ~_accepting;
+        if(rest == 0 || (rest & (rest - 1)) != 0)
+            return -1;
+        int state = Long.numberOfTrailingZeros(rest);
+        return _kinds[state] == LITERAL ? _literals[state] : -1;
+    }
+
+    private boolean matches(int state, char ch){
+        switch(_kinds[state]){
+            case LITERAL:
+                return _literals[state] == ch;
+            case ANY:
+                return true;
+            default:
+                char[] ranges = _ranges[state];
+                boolean inClass = false;
+                for(int k = 0; k < ranges.length && !inClass; k += 2)
+                    inClass = ch >= ranges[k] && ch <= ranges[k + 1];
+                return inClass != _negated[state];
+        }
+    }
+
+    // a * can match nothing, so being before it is also being after it
+    private long closure(long states){
+        for(int state = 0; state < _kinds.length; ++state)
+            if((states & (1L << state)) != 0 && _kinds[state] == STAR)
+                states |= 1L << (state + 1);
+        return states;
+    }
+}
@@ -43,6 +43,9 @@ public class JobQueue {
     }
 
 
+    // Called by a worker thread right before it exits, so queues that keep per-worker state can hand its jobs on
+    public void workerExited(){}
+
     public int maxSize(){return _jobQueueSize;}
     public boolean Any(){return _jobQueue.any();}
     public int length(){ return _jobQueue.length();}
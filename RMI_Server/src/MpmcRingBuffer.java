@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded multi-producer/multi-consumer queue over a preallocated array. Every slot carries a sequence number that
+// says whose turn it is: a producer may fill slot i at position p once its sequence is p, and a consumer may empty
+// it once the sequence is p + 1. Producers and consumers only race on their own position counter with a CAS, so no
+// operation ever takes a lock.
+public class MpmcRingBuffer<E> {
+    private int _capacity;
+    private AtomicReferenceArray<E> _buffer;
+    private AtomicLongArray _sequences;
+    private AtomicLong _enqueuePosition, _dequeuePosition;
+
+    public MpmcRingBuffer(int capacity){
+        if(capacity < 1)
+            throw new IllegalArgumentException("Invalid size of MpmcRingBuffer: " + capacity);
+        _capacity = capacity;
+        _buffer = new AtomicReferenceArray<>(capacity);
+        _sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; ++i)
+            _sequences.set(i, i);
+        _enqueuePosition = new AtomicLong();
+        _dequeuePosition = new AtomicLong();
+    }
+
+    public int capacity(){return _capacity;}
+
+    // returns false if the buffer is full
+    public boolean offer(E newValue){
+        if(newValue == null)
+            throw new NullPointerException();
+
+        long position = _enqueuePosition.get();
+        while(true){
+            int index = (int)(position % _capacity);
+            long difference = _sequences.get(index) - position;
+
+            if(difference == 0){
+                if(_enqueuePosition.compareAndSet(position, position + 1)){
+                    _buffer.set(index, newValue);
+                    _sequences.set(index, position + 1); // publish the slot to consumers
+                    return true;
+                }
+                position = _enqueuePosition.get();
+            }
+            else if(difference < 0)
+                return false; // the slot still holds a value from the previous lap
+            else
+                position = _enqueuePosition.get();
+        }
+    }
+
+    // returns null if the buffer is empty
+    public E poll(){
+        long position = _dequeuePosition.get();
+        while(true){
+            int index = (int)(position % _capacity);
+            long difference = _sequences.get(index) - (position + 1);
+
+            if(difference == 0){
+                if(_dequeuePosition.compareAndSet(position, position + 1)){
+                    E value = _buffer.get(index);
+                    _buffer.set(index, null);
+                    _sequences.set(index, position + _capacity); // hand the slot to the producer one lap ahead
+                    return value;
+                }
+                position = _dequeuePosition.get();
+            }
+            else if(difference < 0)
+                return null; // nothing has been published here yet
+            else
+                position = _dequeuePosition.get();
+        }
+    }
+
+    public int length(){
+        // read the consumer side first so a concurrent dequeue can never make the result negative
+        long dequeued = _dequeuePosition.get();
+        long enqueued = _enqueuePosition.get();
+        return (int)Math.max(0, Math.min(_capacity, enqueued - dequeued));
+    }
+
+    public boolean any(){return length() > 0;}
+}
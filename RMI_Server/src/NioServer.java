@@ -0,0 +1,407 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+// Non-blocking transport: the calling thread accepts connections and hands them round-robin to a small number of
+// selector loops. The loops only frame lines and move bytes; complete commands run on a fixed worker pool, so idle
+// connections cost a selection key instead of a pinned thread.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+    private static final int MAX_PIPELINED_COMMANDS = 128; // per connection, reading pauses while this many are waiting
+    private static final int MAX_PENDING_OUTPUT_BYTES = 1 << 20; // or while this much of its replies is still unwritten
+
+    private ServerSocketChannel _serverChannel;
+    private IoLoop[] _ioLoops;
+    private ExecutorService _workers;
+    private CommandProcessor _commandProcessor;
+    private BinaryProtocol _binaryProtocol;
+    private Charset _charset;
+    private volatile boolean _stopped;
+    private int _nextLoop;
+
+    public NioServer(int port, int ioLoopCount, int workerCount, Trie trie) throws IOException{
+        if(ioLoopCount < 1 || workerCount < 1 || trie == null)
+            throw new IllegalArgumentException();
+
+        _commandProcessor = new CommandProcessor(trie);
+        _binaryProtocol = new BinaryProtocol(trie);
+        _charset = Charset.defaultCharset();
+        _workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private int _noInstances = 0;
+
+            @Override
+            public Thread newThread(Runnable runnable){
+                return new Thread(runnable, "NIO Worker Thread " + _noInstances++);
+            }
+        });
+
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.socket().setReuseAddress(true);
+        _serverChannel.bind(new InetSocketAddress(port));
+
+        _ioLoops = new IoLoop[ioLoopCount];
+        for(int i = 0; i < ioLoopCount; ++i) {
+            _ioLoops[i] = new IoLoop(i);
+            _ioLoops[i].start();
+        }
+    }
+
+    // Accepts connections on the calling thread until the server is stopped
+    public void serve(){
+        while(!_stopped){
+            try{
+                SocketChannel clientChannel = _serverChannel.accept();
+                clientChannel.configureBlocking(false);
+                clientChannel.socket().setTcpNoDelay(true);
+                _ioLoops[_nextLoop++ % _ioLoops.length].register(clientChannel);
+            }
+            catch(ClosedChannelException e){
+                break;
+            }
+            catch(IOException e){
+                System.err.println(e);
+            }
+        }
+        stop();
+        for(IoLoop thisLoop : _ioLoops)
+            try{thisLoop.join();}catch(InterruptedException e){}
+    }
+
+    public boolean stopped(){return _stopped;}
+
+    public void stop(){
+        if(_stopped)
+            return;
+        _stopped = true;
+        try{_serverChannel.close();}catch(Exception e){}
+        for(IoLoop thisLoop : _ioLoops)
+            thisLoop._selector.wakeup();
+        _workers.shutdownNow();
+    }
+
+    private class IoLoop extends Thread {
+        private Selector _selector;
+        private ConcurrentLinkedQueue<SocketChannel> _newChannels;
+        private ConcurrentLinkedQueue<NioConnection> _pendingWrites;
+        private ByteBuffer _readBuffer;
+
+        IoLoop(int loopId) throws IOException{
+            super("NIO IO Loop " + loopId);
+            _selector = Selector.open();
+            _newChannels = new ConcurrentLinkedQueue<>();
+            _pendingWrites = new ConcurrentLinkedQueue<>();
+            _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+
+        void register(SocketChannel clientChannel){
+            _newChannels.add(clientChannel);
+            _selector.wakeup();
+        }
+
+        void requestWrite(NioConnection connection){
+            _pendingWrites.add(connection);
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run(){
+            try {
+                while (!_stopped) {
+                    _selector.select();
+
+                    SocketChannel newChannel;
+                    while ((newChannel = _newChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = newChannel.register(_selector, SelectionKey.OP_READ);
+                            key.attach(new NioConnection(newChannel, key, this));
+                        } catch (IOException e) {
+                            try{newChannel.close();}catch(Exception ex){}
+                        }
+                    }
+
+                    NioConnection writer;
+                    while ((writer = _pendingWrites.poll()) != null) {
+                        if (writer._key.isValid()) {
+                            writer._key.interestOps(writer._key.interestOps() | SelectionKey.OP_WRITE);
+                            writer.pauseReadIfBacklogged();
+                        }
+                    }
+
+                    Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.read(_readBuffer);
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            }
+            catch(IOException e){
+                System.err.println(e);
+            }
+            finally {
+                for(SelectionKey key : _selector.keys())
+                    try{key.channel().close();}catch(Exception e){}
+                SocketChannel newChannel;
+                while ((newChannel = _newChannels.poll()) != null)
+                    try{newChannel.close();}catch(Exception e){}
+                try{_selector.close();}catch(Exception e){}
+            }
+        }
+    }// end IoLoop
+
+    private class NioConnection implements Runnable {
+        private SocketChannel _channel;
+        private SelectionKey _key;
+        private IoLoop _ioLoop;
+        private ByteArrayOutputStream _partialLine;
+        private ArrayDeque<String> _commands;
+        private ArrayDeque<ByteBuffer> _output;
+        private boolean _scheduled, _inputClosed, _readPaused;
+        private long _pendingOutputBytes; // in _output, not yet written
+        // decided by the first byte the client sends, see BinaryProtocol
+        private boolean _negotiated, _binary, _versionChecked;
+        private ByteBuffer _partialFrame;
+        private ArrayDeque<byte[]> _frames;
+
+        NioConnection(SocketChannel channel, SelectionKey key, IoLoop ioLoop){
+            _channel = channel;
+            _key = key;
+            _ioLoop = ioLoop;
+            _partialLine = new ByteArrayOutputStream();
+            _commands = new ArrayDeque<>();
+            _frames = new ArrayDeque<>();
+            _output = new ArrayDeque<>();
+        }
+
+        // Called on the IO loop: frame whatever arrived into complete lines and queue them for the workers
+        void read(ByteBuffer readBuffer) throws IOException{
+            readBuffer.clear();
+            int bytesRead = _channel.read(readBuffer);
+            if(bytesRead < 0){
+                // The end of the stream has been reached, finish the commands we already have and then close
+                synchronized (this) {
+                    _inputClosed = true;
+                }
+                _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfIdle();
+                return;
+            }
+            readBuffer.flip();
+            if(!_negotiated && readBuffer.hasRemaining()){
+                _negotiated = true;
+                if(readBuffer.get(readBuffer.position()) == BinaryProtocol.HELLO){
+                    readBuffer.get();
+                    _binary = true;
+                    _partialFrame = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                }
+            }
+            if(_binary){
+                readFrames(readBuffer);
+                return;
+            }
+
+            ArrayList<String> lines = new ArrayList<>();
+            while(readBuffer.hasRemaining()){
+                byte thisByte = readBuffer.get();
+                if(thisByte == '\n'){
+                    byte[] lineBytes = _partialLine.toByteArray();
+                    int length = lineBytes.length;
+                    if(length > 0 && lineBytes[length - 1] == '\r')
+                        --length;
+                    lines.add(new String(lineBytes, 0, length, _charset));
+                    _partialLine.reset();
+                }
+                else
+                    _partialLine.write(thisByte);
+            }
+            if(_partialLine.size() > MAX_LINE_LENGTH)
+                throw new IOException("Line too long from client " + _channel);
+
+            if(lines.isEmpty())
+                return;
+            synchronized (this){
+                _commands.addAll(lines);
+            }
+            schedule();
+        }
+
+        // the binary counterpart of the line framing above: cut whole length-prefixed frames out of what arrived
+        private void readFrames(ByteBuffer readBuffer) throws IOException{
+            if(_partialFrame.remaining() < readBuffer.remaining()){
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(_partialFrame.capacity() * 2,
+                        _partialFrame.position() + readBuffer.remaining()));
+                _partialFrame.flip();
+                _partialFrame = grown.put(_partialFrame);
+            }
+            _partialFrame.put(readBuffer);
+            _partialFrame.flip();
+
+            if(!_versionChecked && _partialFrame.hasRemaining()){
+                if(_partialFrame.get() != BinaryProtocol.VERSION)
+                    throw new IOException("Unsupported binary protocol version from client " + _channel);
+                _versionChecked = true;
+            }
+            ArrayList<byte[]> frames = new ArrayList<>();
+            while(_partialFrame.remaining() >= 4){
+                int length = _partialFrame.getInt(_partialFrame.position());
+                if(length < BinaryProtocol.REQUEST_HEADER_SIZE || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                    throw new IOException("Bad frame length " + length + " from client " + _channel);
+                if(_partialFrame.remaining() < 4 + length)
+                    break;
+                _partialFrame.getInt();
+                byte[] frame = new byte[length];
+                _partialFrame.get(frame);
+                frames.add(frame);
+            }
+            _partialFrame.compact();
+
+            if(frames.isEmpty())
+                return;
+            synchronized (this){
+                _frames.addAll(frames);
+            }
+            schedule();
+        }
+
+        // the client is too far ahead: commands wait to run, or replies wait for it to read them
+        private synchronized boolean backlogged(){
+            return _commands.size() + _frames.size() >= MAX_PIPELINED_COMMANDS || _pendingOutputBytes >= MAX_PENDING_OUTPUT_BYTES;
+        }
+
+        // called on the IO loop; lets TCP hold the client back until write() has caught up
+        synchronized void pauseReadIfBacklogged(){
+            if(!_readPaused && backlogged()){
+                _readPaused = true;
+                _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        // called on the IO loop after queueing commands
+        private void schedule(){
+            synchronized (this){
+                pauseReadIfBacklogged();
+                if(_scheduled)
+                    return;
+                _scheduled = true;
+            }
+            try {
+                _workers.execute(this);
+            }catch(RejectedExecutionException e){
+                close();
+            }
+        }
+
+        // Runs on a worker: only one worker drains a given connection at a time, so replies keep the command order
+        @Override
+        public void run(){
+            while(true) {
+                ByteBuffer replies = _binary ? runFrames() : runCommands();
+                if (replies == null)
+                    return;
+
+                boolean done;
+                synchronized (this) {
+                    _output.add(replies);
+                    _pendingOutputBytes += replies.remaining();
+                    done = _commands.isEmpty() && _frames.isEmpty();
+                    if (done)
+                        _scheduled = false;
+                }
+                _ioLoop.requestWrite(this);
+                if (done)
+                    return;
+            }
+        }
+
+        // the replies of a batch go out in one buffer, so one write for all the commands that came in together;
+        // null once the server has been killed
+        private ByteBuffer runCommands(){
+            ArrayList<String> batch;
+            synchronized (this) {
+                batch = new ArrayList<>(_commands);
+                _commands.clear();
+            }
+            StringBuilder replies = new StringBuilder();
+            for (String command : batch) {
+                if (command.equals(CommandProcessor.KILL_COMMAND)) {
+                    stop();
+                    return null;
+                }
+                replies.append(_commandProcessor.process(command)).append('\n');
+            }
+            return ByteBuffer.wrap(replies.toString().getBytes(_charset));
+        }
+
+        private ByteBuffer runFrames(){
+            ArrayList<byte[]> batch;
+            synchronized (this) {
+                batch = new ArrayList<>(_frames);
+                _frames.clear();
+            }
+            ByteArrayOutputStream replies = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(replies);
+            try {
+                for (byte[] frame : batch)
+                    _binaryProtocol.process(ByteBuffer.wrap(frame), out);
+            } catch (IOException e) {
+                // only written to memory
+            }
+            return ByteBuffer.wrap(replies.toByteArray());
+        }
+
+        // Called on the IO loop once the channel can take more bytes
+        void write() throws IOException{
+            synchronized (this) {
+                while (!_output.isEmpty()) {
+                    ByteBuffer thisBuffer = _output.peek();
+                    _pendingOutputBytes -= _channel.write(thisBuffer);
+                    if (thisBuffer.hasRemaining())
+                        break;
+                    _output.poll();
+                }
+                if (_readPaused && !_inputClosed && !backlogged()) {
+                    _readPaused = false;
+                    _key.interestOps(_key.interestOps() | SelectionKey.OP_READ);
+                }
+                if (!_output.isEmpty())
+                    return; // the channel is full, wait for it to take more
+            }
+            _key.interestOps(_key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfIdle();
+        }
+
+        private void closeIfIdle(){
+            synchronized (this){
+                if(!_inputClosed || _scheduled || !_commands.isEmpty() || !_frames.isEmpty() || !_output.isEmpty())
+                    return;
+            }
+            close();
+        }
+
+        void close(){
+            _key.cancel();
+            try{_channel.close();}catch(Exception e){}
+        }
+    }// end NioConnection
+}
@@ -0,0 +1,311 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Off-heap persistence for trie nodes (-fs). Every node owns one fixed-size record in a file that is mapped into
+// memory a segment at a time; records are overwritten in place and the slots of pruned nodes are recycled.
+// A record stores the node's parent slot, its edge key and label and its word flag, which is enough to put the trie
+// back together after a restart. Labels longer than fit in the record continue in a chain of overflow records.
+// How often the mapped pages are forced to disk is set by the ForcePolicy.
+//
+// Record (32 bytes):  flags, key, parent slot, node id, label length, first overflow slot, 6 label chars
+// Overflow record:    flags, next overflow slot, 12 label chars
+// Slot 0 is the file header (magic, version, high water mark), slot 1 is the root.
+public class NodeStore {
+    public enum ForcePolicy { NONE, PERIODIC, ALWAYS }
+
+    public static final int ROOT_SLOT = 1;
+
+    private static final int MAGIC = 0x4E4F4445; // "NODE"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 32;
+    private static final int RECORDS_PER_SEGMENT = 1 << 16; // 2MB mapped at a time
+    private static final int INLINE_LABEL_CHARS = 6, OVERFLOW_LABEL_CHARS = 12;
+
+    private static final int FLAGS = 0, KEY = 2, PARENT = 4, ID = 8, LABEL_LENGTH = 12, OVERFLOW = 16, LABEL = 20;
+    private static final int NEXT = 4, OVERFLOW_LABEL = 8;
+    private static final int HEADER_HIGH_WATER = 8;
+
+    private static final byte IN_USE = 1, WORD = 2, OVERFLOW_RECORD = 4;
+
+    private RandomAccessFile _file;
+    private FileChannel _channel;
+    private volatile MappedByteBuffer[] _segments;
+    private ForcePolicy _forcePolicy;
+    private volatile boolean _dirty;
+    private Thread _forceThread;
+
+    // guarded by this
+    private int _highWater;                  // slots below this have been handed out at some point
+    private int[] _freeSlots = new int[64];
+    private int _freeCount;
+
+    public NodeStore(File file, ForcePolicy forcePolicy, long forceIntervalMillis) throws IOException{
+        if(file == null || forcePolicy == null || forceIntervalMillis <= 0)
+            throw new IllegalArgumentException();
+        _forcePolicy = forcePolicy;
+        _file = new RandomAccessFile(file, "rw");
+        _channel = _file.getChannel();
+        _segments = new MappedByteBuffer[0];
+
+        if(_channel.size() == 0){
+            ensureCapacity(ROOT_SLOT + 1);
+            MappedByteBuffer header = _segments[0];
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            _highWater = ROOT_SLOT + 1;
+            header.putInt(HEADER_HIGH_WATER, _highWater);
+            header.put(offset(ROOT_SLOT) + FLAGS, IN_USE);
+            header.putInt(offset(ROOT_SLOT) + PARENT, -1);
+        }
+        else{
+            ensureCapacity((int)(_channel.size() / RECORD_SIZE));
+            MappedByteBuffer header = _segments[0];
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("Not a node store file (bad magic or version): " + file);
+            _highWater = header.getInt(HEADER_HIGH_WATER);
+            for(int slot = ROOT_SLOT + 1; slot < _highWater; ++slot)
+                if(flags(slot) == 0)
+                    pushFreeSlot(slot);
+        }
+
+        if(forcePolicy == ForcePolicy.PERIODIC){
+            _forceThread = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        while(!Thread.currentThread().isInterrupted()){
+                            Thread.sleep(forceIntervalMillis);
+                            if(_dirty){
+                                _dirty = false;
+                                force();
+                            }
+                        }
+                    }catch(InterruptedException e){}
+                }
+            });
+            _forceThread.setDaemon(true);
+            _forceThread.setName("NodeStore-force");
+            _forceThread.start();
+        }
+    }
+
+    // number of slots to look at when reading the store back
+    public synchronized int highWater(){return _highWater;}
+
+    public synchronized int allocate(){
+        if(_freeCount > 0)
+            return _freeSlots[--_freeCount];
+        int slot = _highWater++;
+        try{
+            ensureCapacity(_highWater);
+        }catch(IOException e){
+            --_highWater;
+            throw new IllegalStateException("Unable to grow node store", e);
+        }
+        _segments[0].putInt(HEADER_HIGH_WATER, _highWater);
+        return slot;
+    }
+
+    // writes the whole record of a node that is about to be published
+    public void create(int slot, int id, int parentSlot, char key, char[] label, boolean word){
+        BitSet touched = touchedSegments();
+        writeRecord(slot, id, parentSlot, key, label, word, touched);
+        written(slot, touched);
+    }
+
+    // moves a node under a new parent or edge label (radix splits and merges), the word flag is left alone
+    public void relink(int slot, int parentSlot, char key, char[] label){
+        BitSet touched = touchedSegments();
+        writeLink(slot, parentSlot, key, label, touched);
+        written(slot, touched);
+    }
+
+    // create and relink for a bulk load (see BulkLoader): nothing is forced until endBatch, whatever the ForcePolicy
+    public void createInBatch(int slot, int id, int parentSlot, char key, char[] label, boolean word){
+        writeRecord(slot, id, parentSlot, key, label, word, null);
+        _dirty = true;
+    }
+
+    public void relinkInBatch(int slot, int parentSlot, char key, char[] label){
+        writeLink(slot, parentSlot, key, label, null);
+        _dirty = true;
+    }
+
+    // forces everything written in the batch with one call, unless the policy is never to force
+    public void endBatch(){
+        if(_forcePolicy != ForcePolicy.NONE)
+            force();
+    }
+
+    private void writeRecord(int slot, int id, int parentSlot, char key, char[] label, boolean word, BitSet touched){
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        segment.putInt(offset + ID, id);
+        writeLink(segment, offset, parentSlot, key, label, touched);
+        segment.put(offset + FLAGS, (byte)(IN_USE | (word ? WORD : 0)));
+    }
+
+    private void writeLink(int slot, int parentSlot, char key, char[] label, BitSet touched){
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        freeOverflow(segment.getInt(offset + OVERFLOW), touched);
+        writeLink(segment, offset, parentSlot, key, label, touched);
+    }
+
+    public void setWord(int slot, boolean word){
+        MappedByteBuffer segment = segment(slot);
+        segment.put(offset(slot) + FLAGS, (byte)(IN_USE | (word ? WORD : 0)));
+        written(slot, touchedSegments());
+    }
+
+    public void free(int slot){
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        BitSet touched = touchedSegments();
+        freeOverflow(segment.getInt(offset + OVERFLOW), touched);
+        segment.put(offset + FLAGS, (byte)0);
+        written(slot, touched);
+        synchronized(this){
+            pushFreeSlot(slot);
+        }
+    }
+
+    // touched, unless null, gets the index of every segment an overflow record is written to
+    private void writeLink(MappedByteBuffer segment, int offset, int parentSlot, char key, char[] label, BitSet touched){
+        int labelLength = (label == null) ? 0 : label.length;
+        segment.putInt(offset + PARENT, parentSlot);
+        segment.putChar(offset + KEY, key);
+        segment.putInt(offset + LABEL_LENGTH, labelLength);
+        for(int i = 0; i < Math.min(labelLength, INLINE_LABEL_CHARS); ++i)
+            segment.putChar(offset + LABEL + i * 2, label[i]);
+
+        // the rest of the label goes into overflow records, written back to front so each one knows its successor
+        int next = -1;
+        int overflowCount = (Math.max(0, labelLength - INLINE_LABEL_CHARS) + OVERFLOW_LABEL_CHARS - 1) / OVERFLOW_LABEL_CHARS;
+        for(int k = overflowCount - 1; k >= 0; --k){
+            int overflowSlot = allocate();
+            MappedByteBuffer overflowSegment = segment(overflowSlot);
+            int overflowOffset = offset(overflowSlot);
+            overflowSegment.putInt(overflowOffset + NEXT, next);
+            int start = INLINE_LABEL_CHARS + k * OVERFLOW_LABEL_CHARS;
+            for(int i = start; i < Math.min(labelLength, start + OVERFLOW_LABEL_CHARS); ++i)
+                overflowSegment.putChar(overflowOffset + OVERFLOW_LABEL + (i - start) * 2, label[i]);
+            overflowSegment.put(overflowOffset + FLAGS, (byte)(IN_USE | OVERFLOW_RECORD));
+            if(touched != null)
+                touched.set(overflowSlot / RECORDS_PER_SEGMENT);
+            next = overflowSlot;
+        }
+        segment.putInt(offset + OVERFLOW, next);
+    }
+
+    private void freeOverflow(int overflowSlot, BitSet touched){
+        while(overflowSlot >= 0){
+            MappedByteBuffer segment = segment(overflowSlot);
+            int next = segment.getInt(offset(overflowSlot) + NEXT);
+            segment.put(offset(overflowSlot) + FLAGS, (byte)0);
+            if(touched != null)
+                touched.set(overflowSlot / RECORDS_PER_SEGMENT);
+            synchronized(this){
+                pushFreeSlot(overflowSlot);
+            }
+            overflowSlot = next;
+        }
+    }
+
+    // reading records back, slots from ROOT_SLOT up to highWater()
+
+    public boolean isNode(int slot){
+        byte flags = flags(slot);
+        return (flags & IN_USE) != 0 && (flags & OVERFLOW_RECORD) == 0;
+    }
+
+    public boolean isWord(int slot){return (flags(slot) & WORD) != 0;}
+
+    public int parentOf(int slot){return segment(slot).getInt(offset(slot) + PARENT);}
+
+    public int idOf(int slot){return segment(slot).getInt(offset(slot) + ID);}
+
+    public char keyOf(int slot){return segment(slot).getChar(offset(slot) + KEY);}
+
+    public char[] labelOf(int slot){
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        char[] label = new char[segment.getInt(offset + LABEL_LENGTH)];
+        for(int i = 0; i < Math.min(label.length, INLINE_LABEL_CHARS); ++i)
+            label[i] = segment.getChar(offset + LABEL + i * 2);
+        int overflowSlot = segment.getInt(offset + OVERFLOW);
+        for(int start = INLINE_LABEL_CHARS; start < label.length && overflowSlot >= 0; start += OVERFLOW_LABEL_CHARS){
+            MappedByteBuffer overflowSegment = segment(overflowSlot);
+            int overflowOffset = offset(overflowSlot);
+            for(int i = start; i < Math.min(label.length, start + OVERFLOW_LABEL_CHARS); ++i)
+                label[i] = overflowSegment.getChar(overflowOffset + OVERFLOW_LABEL + (i - start) * 2);
+            overflowSlot = overflowSegment.getInt(overflowOffset + NEXT);
+        }
+        return label;
+    }
+
+    private byte flags(int slot){return segment(slot).get(offset(slot) + FLAGS);}
+
+    private MappedByteBuffer segment(int slot){return _segments[slot / RECORDS_PER_SEGMENT];}
+
+    private static int offset(int slot){return (slot % RECORDS_PER_SEGMENT) * RECORD_SIZE;}
+
+    private void pushFreeSlot(int slot){
+        if(_freeCount == _freeSlots.length)
+            _freeSlots = Arrays.copyOf(_freeSlots, _freeCount * 2);
+        _freeSlots[_freeCount++] = slot;
+    }
+
+    // maps more of the file (which grows it) until slotCount slots are covered; called while holding this
+    private void ensureCapacity(int slotCount) throws IOException{
+        MappedByteBuffer[] segments = _segments;
+        int needed = (slotCount + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT;
+        if(needed <= segments.length)
+            return;
+        MappedByteBuffer[] newSegments = Arrays.copyOf(segments, needed);
+        for(int i = segments.length; i < needed; ++i)
+            newSegments[i] = _channel.map(FileChannel.MapMode.READ_WRITE, (long)i * RECORDS_PER_SEGMENT * RECORD_SIZE,
+                    (long)RECORDS_PER_SEGMENT * RECORD_SIZE);
+        _segments = newSegments;
+    }
+
+    // where a write collects the segments it touched, when every write is forced (null otherwise)
+    private BitSet touchedSegments(){
+        return (_forcePolicy == ForcePolicy.ALWAYS) ? new BitSet() : null;
+    }
+
+    // slot's record has been written, along with any overflow records in touched
+    private void written(int slot, BitSet touched){
+        if(touched == null){
+            _dirty = true;
+            return;
+        }
+        touched.set(slot / RECORDS_PER_SEGMENT);
+        touched.set(0); // the high water mark may have moved
+        MappedByteBuffer[] segments = _segments;
+        for(int i = touched.nextSetBit(0); i >= 0; i = touched.nextSetBit(i + 1))
+            segments[i].force();
+    }
+
+    public void force(){
+        for(MappedByteBuffer segment : _segments)
+            segment.force();
+    }
+
+    public void close(){
+        if(_forceThread != null)
+            _forceThread.interrupt();
+        force();
+        try{
+            _channel.close();
+            _file.close();
+        }catch(IOException e){
+            System.err.println(e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// JobQueue backed by a lock-free MpmcRingBuffer. An idle worker first spins, then yields, then parks; a producer
+// unparks a single parked worker per job instead of waking every waiting thread with notifyAll().
+public class RingBufferJobQueue extends JobQueue {
+    private MpmcRingBuffer<Socket> _ringBuffer;
+    private ConcurrentLinkedQueue<Thread> _parkedWorkers;
+    private int _spinTries, _yieldTries;
+
+    public RingBufferJobQueue(int jobQueueSize, int spinTries, int yieldTries){
+        super(jobQueueSize);
+        if(spinTries < 0 || yieldTries < 0)
+            throw new IllegalArgumentException("Spin and yield tries can not be negative: " + spinTries + ", " + yieldTries);
+        _ringBuffer = new MpmcRingBuffer<>(jobQueueSize);
+        _parkedWorkers = new ConcurrentLinkedQueue<>();
+        _spinTries = spinTries;
+        _yieldTries = yieldTries;
+    }
+
+    @Override
+    public boolean addJob(Socket thisJob){
+        if(thisJob == null)
+            throw new IllegalArgumentException();
+
+        // If there is no more room in the job queue, let the caller know (return false);
+        if(!_ringBuffer.offer(thisJob))
+            return false;
+
+        wakeOneWorker();
+        return true;
+    }
+
+    @Override
+    public Socket fetchJob() throws InterruptedException{
+        Socket job;
+
+        for(int i = 0; i < _spinTries; ++i){
+            if((job = _ringBuffer.poll()) != null)
+                return job;
+            if(Thread.interrupted())
+                throw new InterruptedException();
+        }
+
+        for(int i = 0; i < _yieldTries; ++i){
+            if((job = _ringBuffer.poll()) != null)
+                return job;
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            Thread.yield();
+        }
+
+        Thread currentThread = Thread.currentThread();
+        while(true){
+            if((job = _ringBuffer.poll()) != null)
+                return job;
+
+            // register before the last look so a job added in between is guaranteed to unpark us
+            _parkedWorkers.add(currentThread);
+            if((job = _ringBuffer.poll()) != null){
+                if(!_parkedWorkers.remove(currentThread))
+                    wakeOneWorker(); // a producer already spent its wakeup on us, pass it on
+                return job;
+            }
+
+            LockSupport.park(this);
+
+            boolean signalled = !_parkedWorkers.remove(currentThread);
+            if(Thread.interrupted()){
+                if(signalled)
+                    wakeOneWorker();
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void wakeOneWorker(){
+        Thread parkedWorker = _parkedWorkers.poll();
+        if(parkedWorker != null)
+            LockSupport.unpark(parkedWorker);
+    }
+
+    @Override
+    public boolean Any(){return _ringBuffer.any();}
+
+    @Override
+    public int length(){return _ringBuffer.length();}
+}
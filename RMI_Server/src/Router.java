@@ -0,0 +1,743 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Router mode (-router <map file>): owns the client port but holds no words, forwarding every text command to the
+// backend servers (ServerMain instances, started with -port) that a PartitionMap gives the words to.
+// A command for one word goes to the backend that owns it. A prefix command goes to every backend that can hold a
+// word with that prefix, and their replies are merged: scan and match in word order, count summed, complete by
+// weight, fuzzy by distance (worked out again here), toString from paged scans. minsert and mquery are split up by
+// backend and the replies put back in order. insert and minsert reply with the word counts of the backends they
+// went to, not of the whole dictionary.
+// Connections to every backend are pooled and reused; one that fails is dropped and the command answered with an
+// error. The map file is checked for changes every few seconds (reload does it at once) and swapped in without a
+// restart; words already stored are not moved when the map changes.
+public class Router {
+    private static final int SCAN_PAGE_SIZE = 10000;         // words per backend scan while gathering toString
+    private static final int MAX_IDLE_CONNECTIONS = 32;      // pooled per backend, more are closed once returned
+    private static final int CONNECT_TIMEOUT = 5000;         // milliseconds
+    private static final int READ_TIMEOUT = 60000;           // milliseconds
+
+    private ServerSocket _listener;
+    private File _mapFile;
+    private long _mapCheckPeriod;
+    private volatile PartitionMap _map;
+    private long _mapModified, _mapLength;                   // guarded by this, the file as last loaded
+    private ConcurrentHashMap<String, BackendPool> _pools = new ConcurrentHashMap<>();
+    private ExecutorService _clients = Executors.newCachedThreadPool();
+    private ExecutorService _scatter = Executors.newCachedThreadPool();
+    private Set<Socket> _activeSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private Charset _charset = Charset.defaultCharset();
+    private volatile boolean _stopped;
+
+    public Router(ServerSocket listener, File mapFile, long mapCheckPeriod) throws IOException{
+        if(listener == null || mapFile == null || mapCheckPeriod <= 0)
+            throw new IllegalArgumentException();
+        _listener = listener;
+        _mapFile = mapFile;
+        _mapCheckPeriod = mapCheckPeriod;
+        reload();
+    }
+
+    // Reads the map file again and routes by it from now on; the old map stays if the file is not valid
+    public final synchronized String reload() throws IOException{
+        long modified = _mapFile.lastModified(), length = _mapFile.length();
+        PartitionMap map = PartitionMap.parse(Files.readAllLines(_mapFile.toPath(), _charset));
+        _map = map;
+        _mapModified = modified;
+        _mapLength = length;
+        for(String address : _pools.keySet())
+            if(!map._backends.contains(address))
+                _pools.remove(address).close();
+        return "Routing " + (map._hashed ? "by hash" : "by key range") + " to " + map._backends.size() + " backends";
+    }
+
+    private synchronized void reloadIfChanged(){
+        if(_mapFile.lastModified() == _mapModified && _mapFile.length() == _mapLength)
+            return;
+        try{
+            System.out.println(reload());
+        }catch(Exception e){
+            System.err.println("Keeping the old partition map: " + e);
+        }
+    }
+
+    public void serve(){
+        Thread mapWatcher = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    while(!_stopped){
+                        Thread.sleep(_mapCheckPeriod);
+                        reloadIfChanged();
+                    }
+                }catch(InterruptedException e){}
+            }
+        });
+        mapWatcher.setDaemon(true);
+        mapWatcher.setName("Router-map");
+        mapWatcher.start();
+
+        try{
+            while(!_stopped){
+                final Socket clientSocket = _listener.accept();
+                _activeSockets.add(clientSocket);
+                _clients.execute(new Runnable(){
+                    @Override
+                    public void run(){
+                        try{
+                            serveClient(clientSocket);
+                        }finally{
+                            _activeSockets.remove(clientSocket);
+                        }
+                    }
+                });
+            }
+        }catch(Exception e){
+            try{_listener.close();}catch(Exception ex){}
+        }
+        mapWatcher.interrupt();
+        stop();
+    }
+
+    public void stop(){
+        if(_stopped)
+            return;
+        _stopped = true;
+        try{_listener.close();}catch(Exception e){}
+        _clients.shutdownNow();
+        _scatter.shutdownNow();
+        for(Socket thisSocket : _activeSockets)
+            try{thisSocket.close();}catch(Exception e){}
+        for(BackendPool pool : _pools.values())
+            pool.close();
+    }
+
+    // The text protocol only, with pipelined commands answered in order and flushed once the client has sent no more
+    private void serveClient(Socket clientSocket){
+        try(Socket socket = clientSocket){
+            PushbackInputStream input = new PushbackInputStream(socket.getInputStream());
+            int firstByte = input.read();
+            if(firstByte < 0 || firstByte == BinaryProtocol.HELLO)
+                return; // the binary protocol is spoken to the backends directly
+            input.unread(firstByte);
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, _charset));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), _charset));
+            for(String command; (command = in.readLine()) != null; ){
+                if(command.equals(CommandProcessor.KILL_COMMAND)){
+                    stop();
+                    break;
+                }
+                route(command, out);
+                if(!in.ready())
+                    out.flush();
+            }
+            out.flush();
+        }catch(IOException e){
+            // the client has gone
+        }
+    }
+
+    // Writes the reply to command, every line of it ending in a newline
+    void route(String command, Writer out) throws IOException{
+        PartitionMap map = _map;
+        String[] tokens = command.split(",");
+        String reply;
+        try{
+            switch(tokens[0]){
+                case "insert":
+                case "query":
+                case "count":
+                    reply = (tokens.length == 2) ? routeWord(map, tokens[0], command, tokens[1].toLowerCase())
+                            : call(map.anyBackend(), command);
+                    break;
+                case "weight":
+                    reply = call((tokens.length == 3) ? map.ownerOf(tokens[1].toLowerCase()) : map.anyBackend(), command);
+                    break;
+                case "toString":
+                    reply = (tokens.length == 2) ? gatherAll(map) : call(map.anyBackend(), command);
+                    break;
+                case "stats":
+                    reply = gatherStats(map, command);
+                    break;
+                case "reload":
+                    reply = reload();
+                    break;
+                case "scan":
+                case "match":
+                    routeStreamed(map, tokens, command, out);
+                    return;
+                case "complete":
+                    reply = (tokens.length == 3 || tokens.length == 4) ? routeComplete(map, tokens, command)
+                            : call(map.anyBackend(), command);
+                    break;
+                case "fuzzy":
+                    reply = (tokens.length == 3 || tokens.length == 4) ? routeFuzzy(map, tokens, command)
+                            : call(map.anyBackend(), command);
+                    break;
+                case "minsert":
+                case "mquery":
+                    reply = (tokens.length >= 2) ? routeBatch(map, tokens) : call(map.anyBackend(), command);
+                    break;
+                case "freeze":
+                case "load":
+                    reply = "Error: " + tokens[0] + " works on one server's words, send it to each backend";
+                    break;
+                default:
+                    reply = "Unknown command: " + command;
+            }
+        }catch(IOException e){
+            reply = "Error: " + e.getMessage();
+        }
+        out.write(reply);
+        out.write('\n');
+    }
+
+    // insert goes to the word's owner; query and count (which are about prefixes) to every backend that may have words
+    // starting with it, usually just the one
+    private String routeWord(PartitionMap map, String op, String command, String word) throws IOException{
+        if(op.equals("insert"))
+            return call(map.ownerOf(word), command);
+        List<String> replies = scatter(map.ownersOfPrefix(word), command);
+        String error = firstError(replies);
+        if(error != null)
+            return error;
+        if(op.equals("query"))
+            return "" + replies.contains("true");
+        int count = 0;
+        for(String reply : replies)
+            count += Integer.parseInt(reply);
+        return "" + count;
+    }
+
+    // Every word in order, gathered by paging through a scan of each backend (a toString reply has no end marker)
+    private String gatherAll(PartitionMap map) throws IOException{
+        List<String> words = new ArrayList<>();
+        for(String address : map._backends){
+            String cursor = null;
+            while(true){
+                List<String> lines = callLines(address, "scan,," + SCAN_PAGE_SIZE + (cursor == null ? "" : "," + cursor));
+                String last = lines.remove(lines.size() - 1);
+                if(last.startsWith("Error"))
+                    return last;
+                words.addAll(lines);
+                if(!last.startsWith("cursor,"))
+                    break;
+                cursor = last.substring("cursor,".length());
+            }
+        }
+        Collections.sort(words);
+        StringBuilder stringBuilder = new StringBuilder();
+        for(String word : words)
+            stringBuilder.append(CommandProcessor.escape(word)).append(System.lineSeparator());
+        return stringBuilder.toString();
+    }
+
+    private String gatherStats(PartitionMap map, String command) throws IOException{
+        List<String> addresses = new ArrayList<>(map._backends);
+        List<String> replies = scatter(addresses, command);
+        StringBuilder stats = new StringBuilder();
+        for(int i = 0; i < addresses.size(); ++i)
+            stats.append(i == 0 ? "" : " | ").append(addresses.get(i)).append(": ").append(replies.get(i));
+        return stats.toString();
+    }
+
+    // scan and match: each backend's page, merged in word order and cut to the limit, with one end line for all
+    private void routeStreamed(PartitionMap map, String[] tokens, String command, Writer out) throws IOException{
+        boolean scan = tokens[0].equals("scan");
+        if(scan)
+            tokens = command.split(",", 4); // the cursor is the rest of the line
+        int limit;
+        try{
+            if(scan ? tokens.length < 3 : tokens.length != 3)
+                throw new NumberFormatException();
+            limit = Math.min(Integer.parseInt(tokens[2]), CommandProcessor.MAX_SCAN_LIMIT);
+        }catch(NumberFormatException e){
+            limit = 0;
+        }
+        if(limit < 1){
+            writeWords(callLines(map.anyBackend(), command), out); // let a backend describe what is wrong
+            return;
+        }
+        String prefix = scan ? tokens[1].toLowerCase() : literalPrefix(tokens[1].toLowerCase());
+        List<List<String>> replies;
+        try{
+            replies = scatterLines(prefix == null ? new ArrayList<>(map._backends) : map.ownersOfPrefix(prefix), command);
+        }catch(IOException e){
+            out.write("Error: " + e.getMessage() + "\n");
+            return;
+        }
+        List<String> words = new ArrayList<>();
+        boolean more = false;
+        for(List<String> lines : replies){
+            String last = lines.remove(lines.size() - 1);
+            if(last.startsWith("Error")){
+                out.write(last + "\n");
+                return;
+            }
+            more |= last.startsWith("cursor,") || last.equals("more");
+            words.addAll(lines);
+        }
+        Collections.sort(words);
+        if(words.size() > limit){
+            words = new ArrayList<>(words.subList(0, limit));
+            more = true;
+        }
+        words.add(!more ? "end" : scan ? "cursor," + CommandProcessor.escape(words.get(words.size() - 1)) : "more");
+        writeWords(words, out);
+    }
+
+    // the characters every match of a glob has to start with, or null if there are none
+    private static String literalPrefix(String pattern){
+        GlobPattern glob;
+        try{
+            glob = new GlobPattern(pattern);
+        }catch(IllegalArgumentException e){
+            return null; // any backend will say what is wrong with it
+        }
+        StringBuilder prefix = new StringBuilder();
+        long states = glob.start();
+        for(int next; (next = glob.onlyNext(states)) >= 0; states = glob.step(states, (char)next))
+            prefix.append((char)next);
+        return prefix.length() == 0 ? null : prefix.toString();
+    }
+
+    // The backends' heaviest words merged by weight; several backends are asked for their lists with weights
+    private String routeComplete(PartitionMap map, String[] tokens, String command) throws IOException{
+        List<String> owners = map.ownersOfPrefix(tokens[1].toLowerCase());
+        if(owners.size() == 1)
+            return call(owners.get(0), command);
+        int k;
+        try{
+            k = Integer.parseInt(tokens[2]);
+        }catch(NumberFormatException e){
+            return call(owners.get(0), command);
+        }
+        List<String> replies = scatter(owners, tokens[0] + "," + tokens[1] + "," + tokens[2] + ",weighted");
+        String error = firstError(replies);
+        if(error != null)
+            return error;
+        List<TrieCompletions.Completion> ranked = new ArrayList<>();
+        for(String reply : replies){
+            if(reply.isEmpty())
+                continue;
+            for(String entry : CommandProcessor.splitWords(reply)){
+                int colon = entry.lastIndexOf(':');
+                ranked.add(new TrieCompletions.Completion(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+            }
+        }
+        Collections.sort(ranked, TrieCompletions.RANK);
+        StringBuilder merged = new StringBuilder();
+        for(int i = 0; i < k && i < ranked.size(); ++i){
+            merged.append(i == 0 ? "" : ",").append(CommandProcessor.escape(ranked.get(i).word));
+            if(tokens.length == 4)
+                merged.append(':').append(ranked.get(i).weight);
+        }
+        return merged.toString();
+    }
+
+    // an edit can change any character, so every backend is asked; closest first, then in word order
+    private String routeFuzzy(PartitionMap map, String[] tokens, String command) throws IOException{
+        int limit;
+        try{
+            Integer.parseInt(tokens[2]);
+            limit = (tokens.length == 4) ? Integer.parseInt(tokens[3]) : CommandProcessor.MAX_SCAN_LIMIT;
+        }catch(NumberFormatException e){
+            return call(map.anyBackend(), command);
+        }
+        List<String> replies = scatter(new ArrayList<>(map._backends), command);
+        String error = firstError(replies);
+        if(error != null)
+            return error;
+        final String word = tokens[1].toLowerCase();
+        final Map<String, Integer> distances = new HashMap<>();
+        for(String reply : replies)
+            for(String match : CommandProcessor.splitWords(reply))
+                distances.put(match, editDistance(word, match));
+        List<String> matches = new ArrayList<>(distances.keySet());
+        Collections.sort(matches, new Comparator<String>(){
+            @Override
+            public int compare(String first, String second){
+                int byDistance = Integer.compare(distances.get(first), distances.get(second));
+                return byDistance != 0 ? byDistance : first.compareTo(second);
+            }
+        });
+        StringBuilder merged = new StringBuilder();
+        for(int i = 0; i < limit && i < matches.size(); ++i)
+            merged.append(i == 0 ? "" : ",").append(CommandProcessor.escape(matches.get(i)));
+        return merged.toString();
+    }
+
+    private static int editDistance(String word, String other){
+        int[] row = Trie.firstEditRow(word), next = new int[row.length];
+        for(int i = 0; i < other.length(); ++i){
+            Trie.nextEditRow(row, next, word, other.charAt(i));
+            int[] previous = row;
+            row = next;
+            next = previous;
+        }
+        return row[word.length()];
+    }
+
+    // minsert sends each word to its owner; mquery (a prefix test per word) to every backend that may hold it
+    private String routeBatch(PartitionMap map, String[] tokens) throws IOException{
+        boolean insert = tokens[0].equals("minsert");
+        Map<String, List<Integer>> byBackend = new LinkedHashMap<>();
+        for(int k = 1; k < tokens.length; ++k){
+            String word = tokens[k].toLowerCase();
+            for(String address : insert ? Collections.singletonList(map.ownerOf(word)) : map.ownersOfPrefix(word)){
+                if(!byBackend.containsKey(address))
+                    byBackend.put(address, new ArrayList<Integer>());
+                byBackend.get(address).add(k);
+            }
+        }
+        List<String> addresses = new ArrayList<>(byBackend.keySet());
+        List<String> batches = new ArrayList<>();
+        for(String address : addresses){
+            StringBuilder batch = new StringBuilder(tokens[0]);
+            for(int k : byBackend.get(address))
+                batch.append(',').append(tokens[k]);
+            batches.add(batch.toString());
+        }
+        List<String> replies = scatter(addresses, batches);
+        String error = firstError(replies);
+        if(error != null)
+            return error;
+
+        char[] results = new char[tokens.length - 1];
+        Arrays.fill(results, '0');
+        int size = 0;
+        for(int i = 0; i < addresses.size(); ++i){
+            String reply = replies.get(i);
+            List<Integer> positions = byBackend.get(addresses.get(i));
+            for(int j = 0; j < positions.size(); ++j)
+                if(reply.charAt(j) == '1')
+                    results[positions.get(j) - 1] = '1';
+            if(insert)
+                size += Integer.parseInt(reply.substring(reply.indexOf(',') + 1));
+        }
+        return insert ? new String(results) + "," + size : new String(results);
+    }
+
+    private static String firstError(List<String> replies){
+        for(String reply : replies)
+            if(reply.startsWith("Error"))
+                return reply;
+        return null;
+    }
+
+    // a scan or match reply: the words tagged and escaped as the backends write them, then the end line, which is the
+    // last in lines
+    private static void writeWords(List<String> lines, Writer out) throws IOException{
+        for(int i = 0; i < lines.size(); ++i){
+            if(i < lines.size() - 1){
+                out.write(CommandProcessor.WORD_LINE_PREFIX);
+                out.write(CommandProcessor.escape(lines.get(i)));
+            }
+            else
+                out.write(lines.get(i));
+            out.write('\n');
+        }
+    }
+
+    // one command to one backend over a pooled connection, its one line reply
+    private String call(String address, String command) throws IOException{
+        return (String) exchange(address, command, false);
+    }
+
+    // a scan or match, up to and including its end line
+    @SuppressWarnings("unchecked")
+    private List<String> callLines(String address, String command) throws IOException{
+        return (List<String>) exchange(address, command, true);
+    }
+
+    private Object exchange(String address, String command, boolean lines) throws IOException{
+        BackendPool pool = poolOf(address);
+        BackendConnection connection = null;
+        try{
+            connection = pool.take();
+            Object reply = lines ? connection.callLines(command) : connection.call(command);
+            if(connection.inStep())
+                pool.give(connection);
+            else
+                connection.close(); // the reply ran on past where it should have ended
+            return reply;
+        }catch(IOException e){
+            if(connection != null)
+                connection.close(); // the stream may be part way through a reply
+            throw new IOException("backend " + address + " failed: " + e, e);
+        }
+    }
+
+    private BackendPool poolOf(String address){
+        BackendPool pool = _pools.get(address);
+        if(pool == null){
+            BackendPool newPool = new BackendPool(address);
+            pool = _pools.putIfAbsent(address, newPool);
+            if(pool == null)
+                pool = newPool;
+        }
+        return pool;
+    }
+
+    private List<String> scatter(List<String> addresses, String command) throws IOException{
+        return scatter(addresses, Collections.nCopies(addresses.size(), command));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> scatter(List<String> addresses, List<String> commands) throws IOException{
+        return (List<String>)(List<?>) exchangeAll(addresses, commands, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<String>> scatterLines(List<String> addresses, String command) throws IOException{
+        return (List<List<String>>)(List<?>) exchangeAll(addresses, Collections.nCopies(addresses.size(), command), true);
+    }
+
+    // the same exchange with several backends at once, replies in the order of addresses
+    private List<Object> exchangeAll(final List<String> addresses, final List<String> commands, final boolean lines) throws IOException{
+        if(addresses.size() == 1)
+            return Collections.singletonList(exchange(addresses.get(0), commands.get(0), lines));
+        List<Future<Object>> futures = new ArrayList<>();
+        for(int i = 0; i < addresses.size(); ++i){
+            final int index = i;
+            futures.add(_scatter.submit(new Callable<Object>(){
+                @Override
+                public Object call() throws IOException{
+                    return exchange(addresses.get(index), commands.get(index), lines);
+                }
+            }));
+        }
+        List<Object> replies = new ArrayList<>();
+        try{
+            for(Future<Object> future : futures)
+                replies.add(future.get());
+        }catch(ExecutionException e){
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the backends");
+        }
+        return replies;
+    }
+
+    // Who holds which words. A range map gives every backend the words from its start word up to the next one's; a
+    // hash map puts the backends on a ring (VIRTUAL_NODES points each) and gives a word to the first point at or after
+    // the hash of its first HASH_KEY_LENGTH characters, so a longer prefix still has a single owner.
+    //
+    // File: "range" or "hash" on the first line, then one backend per line, as host:port; in a range map every line
+    // but the first also gives its start word after a space, in increasing order. Blank lines and # comments are skipped.
+    static final class PartitionMap {
+        static final int HASH_KEY_LENGTH = 2;
+        private static final int VIRTUAL_NODES = 64;
+
+        boolean _hashed;
+        Set<String> _backends = new LinkedHashSet<>(); // each one once, in file order
+        private String[] _starts, _owners;             // range map, _starts[0] is ""
+        private TreeMap<Long, String> _ring;           // hash map
+
+        static PartitionMap parse(List<String> lines) throws IOException{
+            PartitionMap map = new PartitionMap();
+            List<String> starts = new ArrayList<>(), owners = new ArrayList<>();
+            String kind = null;
+            for(int number = 1; number <= lines.size(); ++number){
+                String line = lines.get(number - 1).trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if(kind == null){
+                    if(!line.equals("range") && !line.equals("hash"))
+                        throw new IOException("Partition map must start with range or hash, line " + number + ": " + line);
+                    kind = line;
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if(fields.length > 2 || !fields[0].matches("[^:]+:\\d+"))
+                    throw new IOException("Expected host:port" + (kind.equals("range") ? " [start word]" : "") + ", line " + number + ": " + line);
+                if(kind.equals("hash") ? fields.length != 1 : (fields.length == 2) == owners.isEmpty())
+                    throw new IOException((kind.equals("hash") ? "A hash map has no start words" : "Only the first range has no start word") + ", line " + number + ": " + line);
+                String start = (fields.length == 2) ? fields[1].toLowerCase() : "";
+                if(kind.equals("range") && !starts.isEmpty() && start.compareTo(starts.get(starts.size() - 1)) <= 0)
+                    throw new IOException("Start words must increase, line " + number + ": " + line);
+                starts.add(start);
+                owners.add(fields[0]);
+                map._backends.add(fields[0]);
+            }
+            if(owners.isEmpty())
+                throw new IOException("Partition map names no backends");
+
+            map._hashed = kind.equals("hash");
+            if(map._hashed){
+                map._ring = new TreeMap<>();
+                for(String address : map._backends)
+                    for(int point = 0; point < VIRTUAL_NODES; ++point)
+                        map._ring.put(hash(address + "#" + point), address);
+            }
+            else{
+                map._starts = starts.toArray(new String[starts.size()]);
+                map._owners = owners.toArray(new String[owners.size()]);
+            }
+            return map;
+        }
+
+        String anyBackend(){return _backends.iterator().next();}
+
+        String ownerOf(String word){
+            if(_hashed){
+                Map.Entry<Long, String> point = _ring.ceilingEntry(hash(word.substring(0, Math.min(word.length(), HASH_KEY_LENGTH))));
+                return (point != null ? point : _ring.firstEntry()).getValue();
+            }
+            int index = Arrays.binarySearch(_starts, word);
+            return _owners[index >= 0 ? index : -index - 2];
+        }
+
+        // every backend that may hold a word starting with prefix, each once
+        List<String> ownersOfPrefix(String prefix){
+            if(_hashed && prefix.length() < HASH_KEY_LENGTH)
+                return new ArrayList<>(_backends);
+            if(_hashed)
+                return Collections.singletonList(ownerOf(prefix));
+            // the range prefix starts in, and every later one whose start word still has the prefix
+            Set<String> owners = new LinkedHashSet<>();
+            int index = Arrays.binarySearch(_starts, prefix);
+            for(index = (index >= 0) ? index : -index - 2; index < _starts.length; ++index){
+                if(!owners.isEmpty() && !_starts[index].startsWith(prefix))
+                    break;
+                owners.add(_owners[index]);
+            }
+            return new ArrayList<>(owners);
+        }
+
+        // FNV-1a through murmur3's finalizer, as in BloomFilter
+        private static long hash(String key){
+            long hash = 0xcbf29ce484222325L;
+            for(int i = 0; i < key.length(); ++i)
+                hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+    // idle connections to one backend; one that is taken is used by a single command at a time
+    private final class BackendPool {
+        private String _host;
+        private int _port;
+        private ConcurrentLinkedQueue<BackendConnection> _idle = new ConcurrentLinkedQueue<>();
+        private volatile boolean _closed;
+
+        BackendPool(String address){
+            int colon = address.lastIndexOf(':');
+            _host = address.substring(0, colon);
+            _port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        BackendConnection take() throws IOException{
+            BackendConnection connection = _idle.poll();
+            return (connection != null) ? connection : new BackendConnection(_host, _port);
+        }
+
+        void give(BackendConnection connection){
+            if(_closed || _idle.size() >= MAX_IDLE_CONNECTIONS)
+                connection.close();
+            else{
+                _idle.add(connection);
+                if(_closed)
+                    close(); // dropped from the map meanwhile
+            }
+        }
+
+        void close(){
+            _closed = true;
+            for(BackendConnection connection; (connection = _idle.poll()) != null; )
+                connection.close();
+        }
+    }
+
+    private final class BackendConnection {
+        private Socket _socket;
+        private BufferedReader _in;
+        private Writer _out;
+
+        BackendConnection(String host, int port) throws IOException{
+            _socket = new Socket();
+            try{
+                _socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                _socket.setSoTimeout(READ_TIMEOUT);
+                _socket.setTcpNoDelay(true);
+                _in = new BufferedReader(new InputStreamReader(_socket.getInputStream(), _charset));
+                _out = new BufferedWriter(new OutputStreamWriter(_socket.getOutputStream(), _charset));
+            }catch(IOException e){
+                close();
+                throw e;
+            }
+        }
+
+        String call(String command) throws IOException{
+            _out.write(command);
+            _out.write('\n');
+            _out.flush();
+            String reply = _in.readLine();
+            if(reply == null)
+                throw new EOFException("connection closed");
+            return reply;
+        }
+
+        // the words of a scan or match reply without their tags and unescaped, then its end line (or an error); any
+        // other line means this connection is out of step with the backend, and the caller closes it
+        List<String> callLines(String command) throws IOException{
+            List<String> lines = new ArrayList<>();
+            String line = call(command);
+            while(line.startsWith(CommandProcessor.WORD_LINE_PREFIX)){
+                lines.add(CommandProcessor.unescape(line.substring(CommandProcessor.WORD_LINE_PREFIX.length())));
+                line = _in.readLine();
+                if(line == null)
+                    throw new EOFException("connection closed");
+            }
+            if(!line.equals("end") && !line.equals("more") && !line.startsWith("cursor,") && !line.startsWith("Error"))
+                throw new IOException("unexpected line in a scan or match reply: " + line);
+            lines.add(line);
+            return lines;
+        }
+
+        // nothing is left over from the last reply, so the next command's reply is the next thing read
+        boolean inStep() throws IOException{
+            return !_in.ready();
+        }
+
+        void close(){
+            try{_socket.close();}catch(Exception e){}
+        }
+    }
+}
@@ -1,9 +1,12 @@
+import java.io.File;
 import java.net.ServerSocket;
 import java.net.Socket;
 
 public class ServerMain {
     // Job queue constants
     private static final int JOB_QUEUE_SIZE = 50;
+    private static final int RING_QUEUE_SPIN_TRIES = 100; // idle wait before parking with -rq
+    private static final int RING_QUEUE_YIELD_TRIES = 10;
 
     // Thread Manager
     private static final int THREAD_MANAGER_LOW_THRESHOLD = 10;
@@ -14,16 +17,226 @@ public class ServerMain {
     private static final int THREAD_POOL_INITIAL_SIZE = 5;
     private static final int THREAD_POOL_MAX_SIZE = 50;
 
+    // NIO transport constants
+    private static final int NIO_IO_LOOP_COUNT = 2;
+    private static final int NIO_WORKER_COUNT = 8;
+
+    // Virtual thread mode constants (connections served at once, the rest are rejected)
+    private static final int VIRTUAL_THREAD_CONCURRENCY_LIMIT = 1000;
+
+    // Write-ahead log (-wal): snapshot once this much has been logged since the last one, checked this often
+    private static final long SNAPSHOT_MIN_LOG_BYTES = 16 * 1024 * 1024;
+    private static final long SNAPSHOT_CHECK_PERIOD = 10000; // milliseconds
+
+    // Router mode (-router): how often the partition map file is checked for changes
+    private static final long ROUTER_MAP_CHECK_PERIOD = 2000; // milliseconds
+
     // Socket
     private static final int SOCKET = 9898;
 
     public static void main(String[] args) throws Exception{
         //String logFileName = (args.length >0) ? args[0] : "";
-        boolean useFs = (args.length > 0 && args[0].equals("-fs") );
+        boolean useFs = false, useRadix = false, useNio = false, useVirtualThreads = false, useRingQueue = false, useWorkStealing = false;
+        boolean useWal = false, relaxedWal = false, degradedStartup = false, useCompletions = false;
+        String frozenFile = null, routerMapFile = null, freezeDirectory = null, loadDirectory = null;
+        int port = SOCKET;
+        long tieredHeapMegabytes = 0, bloomExpectedWords = 0;
+        NodeStore.ForcePolicy forcePolicy = NodeStore.ForcePolicy.PERIODIC;
+        int virtualThreadLimit = VIRTUAL_THREAD_CONCURRENCY_LIMIT, shardCount = 0;
+        int ringQueueSpinTries = RING_QUEUE_SPIN_TRIES, ringQueueYieldTries = RING_QUEUE_YIELD_TRIES;
+        for(int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-fs"))
+                useFs = true;
+            else if (args[i].equals("-fsync")) {
+                // when the -fs node store is forced to disk: -fsync none|periodic|always
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("-fsync needs one of none, periodic, always");
+                forcePolicy = NodeStore.ForcePolicy.valueOf(args[++i].toUpperCase());
+            }
+            else if (args[i].equals("-wal")) {
+                useWal = true;
+                // optional: -wal relaxed replies before the log record is on disk
+                if (i + 1 < args.length && args[i + 1].equals("relaxed")) {
+                    relaxedWal = true;
+                    ++i;
+                }
+            }
+            else if (args[i].equals("-degraded"))
+                // start listening before -wal recovery is done, answering queries from the partly restored trie
+                degradedStartup = true;
+            else if (args[i].equals("-radix"))
+                useRadix = true;
+            else if (args[i].equals("-frozen")) {
+                // serve a file written by the freeze command as a read-only base: -frozen words.frz
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("-frozen needs a file name");
+                frozenFile = args[++i];
+            }
+            else if (args[i].equals("-freezedir")) {
+                // let clients run freeze,<name>, writing <directory>/<name> and nowhere else: -freezedir frozen
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("-freezedir needs a directory");
+                freezeDirectory = args[++i];
+            }
+            else if (args[i].equals("-loaddir")) {
+                // let clients run load,<name>, reading <directory>/<name> and nothing else: -loaddir wordlists
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("-loaddir needs a directory");
+                loadDirectory = args[++i];
+            }
+            else if (args[i].equals("-tiered")) {
+                // keep the trie within a heap budget, evicting cold subtrees to disk: -tiered <megabytes>
+                if (i + 1 >= args.length || !args[i + 1].matches("\\d+"))
+                    throw new IllegalArgumentException("-tiered needs a heap budget in megabytes");
+                tieredHeapMegabytes = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-complete"))
+                // cache ranked completions in every node, so complete,<prefix>,<k> does not search the subtree
+                useCompletions = true;
+            else if (args[i].equals("-bloom")) {
+                // answer queries for prefixes no word has from a Bloom filter: -bloom <expected words>
+                if (i + 1 >= args.length || !args[i + 1].matches("\\d+"))
+                    throw new IllegalArgumentException("-bloom needs the number of words expected");
+                bloomExpectedWords = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-shards")) {
+                // split the dictionary by first character over shards with one writer thread each, see ShardedTrie;
+                // optional shard count: -shards 8 (one per core by default)
+                shardCount = Runtime.getRuntime().availableProcessors();
+                if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+                    shardCount = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-port")) {
+                // listen somewhere else than the default port, for running several servers on one machine: -port 9901
+                if (i + 1 >= args.length || !args[i + 1].matches("\\d+"))
+                    throw new IllegalArgumentException("-port needs a port number");
+                port = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-router")) {
+                // hold no words, forward every command to the backend servers in a partition map: -router <map file>
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("-router needs a partition map file");
+                routerMapFile = args[++i];
+            }
+            else if (args[i].equals("-nio"))
+                useNio = true;
+            else if (args[i].equals("-vt")) {
+                useVirtualThreads = true;
+                // optional concurrency limit: -vt 5000
+                if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+                    virtualThreadLimit = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-ws"))
+                useWorkStealing = true;
+            else if (args[i].equals("-rq")) {
+                useRingQueue = true;
+                // optional idle wait strategy: -rq <spins>,<yields> (-rq 0,0 parks right away)
+                if (i + 1 < args.length && args[i + 1].matches("\\d+,\\d+")) {
+                    String[] waitTries = args[++i].split(",");
+                    ringQueueSpinTries = Integer.parseInt(waitTries[0]);
+                    ringQueueYieldTries = Integer.parseInt(waitTries[1]);
+                }
+            }
+        }
+
+        if(routerMapFile != null){
+            // the backends hold the words, so none of the trie options apply here
+            new Router(new ServerSocket(port), new File(routerMapFile), ROUTER_MAP_CHECK_PERIOD).serve();
+            return;
+        }
+
+        if(useFs && useWal)
+            throw new IllegalArgumentException("-fs and -wal are two different persistence modes, pick one");
+        if(useFs && tieredHeapMegabytes > 0)
+            throw new IllegalArgumentException("-tiered can not be used with -fs, the node store already keeps every node");
+        if(useCompletions && tieredHeapMegabytes > 0)
+            throw new IllegalArgumentException("-complete can not be used with -tiered, evicted subtrees would lose their lists");
+        if(useWorkStealing && useRingQueue)
+            throw new IllegalArgumentException("-ws and -rq are two different job queues, pick one");
+
+        if(freezeDirectory != null){
+            CommandProcessor.setFreezeDirectory(new File(freezeDirectory));
+            // freeze renames its output over the old file, which must not be the one being served
+            if(frozenFile != null && new File(frozenFile).getCanonicalFile().getParentFile().equals(new File(freezeDirectory).getCanonicalFile()))
+                throw new IllegalArgumentException("Keep the -frozen file out of the -freezedir directory, a freeze could replace it while mapped");
+        }
+
+        if(loadDirectory != null)
+            CommandProcessor.setLoadDirectory(new File(loadDirectory));
+
+        if(shardCount > 0 && (useFs || useWal || tieredHeapMegabytes > 0 || frozenFile != null))
+            throw new IllegalArgumentException("-shards keeps its shards on the heap only, it can not be used with -fs, -wal, -tiered or -frozen");
+
+        long bootStart = System.nanoTime();
+        final Trie trie = (shardCount > 0) ? new ShardedTrie("Test_Trie", shardCount, useRadix)
+                : new Trie("Test_Trie", useFs ? Trie.openNodeStore("Test_Trie", forcePolicy) : null, useRadix);
+        if(useFs)
+            System.out.println("Loaded " + trie.size() + " words from " + Trie.getNodeStoreFilename("Test_Trie") + " in "
+                    + (System.nanoTime() - bootStart) / 1000000 + " ms");
+        if(tieredHeapMegabytes > 0)
+            trie.enableTiering(new File("Trie_Test_Trie.cold"), tieredHeapMegabytes * 1024 * 1024);
+        if(frozenFile != null){
+            long loadStart = System.nanoTime();
+            FrozenTrie frozenTrie = FrozenTrie.load(new File(frozenFile));
+            trie.setFrozenBase(frozenTrie);
+            System.out.println("Mapped " + frozenTrie.wordCount() + " frozen words (" + frozenTrie.fileSize() + " bytes) in "
+                    + (System.nanoTime() - loadStart) / 1000000 + " ms");
+        }
+        if(useCompletions && !useWal)
+            trie.enableCompletions();
+        if(bloomExpectedWords > 0 && !useWal)
+            trie.enableBloomFilter(bloomExpectedWords);
+        if(useWal){
+            final boolean relaxed = relaxedWal, completions = useCompletions;
+            final long bloomWords = bloomExpectedWords;
+            Runnable recovery = new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        TrieSnapshot.recover(trie, "Trie_Test_Trie", relaxed, Runtime.getRuntime().availableProcessors(),
+                                bloomWords, SNAPSHOT_MIN_LOG_BYTES, SNAPSHOT_CHECK_PERIOD);
+                        if(completions)
+                            trie.enableCompletions(); // while changes are still refused
+                        trie.setRecovering(false);
+                    }catch(Exception e){
+                        // stay in recovering mode: serving writes that can not be logged would lose them
+                        System.err.println("Recovery failed, not accepting changes: " + e);
+                    }
+                }
+            };
+            trie.setRecovering(true);
+            if(degradedStartup)
+                new Thread(recovery, "Recovery").start();
+            else{
+                recovery.run();
+                if(trie.isRecovering())
+                    return;
+            }
+        }
+
+        if(useNio){
+            // selector based transport: a fixed number of threads regardless of how many clients are connected
+            NioServer nioServer = new NioServer(port, NIO_IO_LOOP_COUNT, NIO_WORKER_COUNT, trie);
+            nioServer.serve();
+            return;
+        }
+
+        ServerSocket listener = new ServerSocket(port);
+        if(useVirtualThreads){
+            // one virtual thread per connection, the ThreadManager has nothing to size in this mode
+            VirtualThreadServer virtualThreadServer = new VirtualThreadServer(listener, virtualThreadLimit, trie);
+            virtualThreadServer.serve();
+            return;
+        }
 
-        ServerSocket listener = new ServerSocket(SOCKET);
-        JobQueue jobQueue = new JobQueue(JOB_QUEUE_SIZE);
-        ThreadPool threadPool = new ThreadPool(THREAD_POOL_INITIAL_SIZE, THREAD_POOL_MAX_SIZE, jobQueue, listener, new Trie("Test_Trie", useFs));
+        JobQueue jobQueue;
+        if(useWorkStealing)
+            jobQueue = new WorkStealingJobQueue(JOB_QUEUE_SIZE);
+        else if(useRingQueue)
+            jobQueue = new RingBufferJobQueue(JOB_QUEUE_SIZE, ringQueueSpinTries, ringQueueYieldTries);
+        else
+            jobQueue = new JobQueue(JOB_QUEUE_SIZE);
+        ThreadPool threadPool = new ThreadPool(THREAD_POOL_INITIAL_SIZE, THREAD_POOL_MAX_SIZE, jobQueue, listener, trie);
 
         ThreadManager threadManager = new ThreadManager(threadPool, jobQueue,
                 THREAD_MANAGER_LOW_THRESHOLD,
@@ -0,0 +1,401 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// A dictionary split by first character over a number of shards (-shards), each an ordinary Trie of its own, so
+// workers no longer share one root and one set of hot nodes. Every shard has a single writer thread: inserts, removes
+// and weights are handed to it through a lock-free MpmcRingBuffer and applied in order, and the caller waits for the
+// result, so the shard's node monitors are only ever taken by that thread. Reads go straight to the shard from any
+// thread, as the shards publish their nodes for lock-free readers anyway.
+//
+// A word or prefix with a first character lives in exactly one shard. The rest (toString, a scan or count of
+// everything, match patterns that do not start with a literal, fuzzy, complete for the empty prefix) asks every shard
+// and merges their answers in order. The empty word is kept in shard 0.
+//
+// Transports take it as a Trie. It does not combine with the persistence modes, tiered storage or a frozen base.
+public class ShardedTrie extends Trie {
+    private static final long serialVersionUID = 1L;
+    private static final int QUEUE_CAPACITY = 4096;  // changes waiting per shard before callers are held back
+    private static final int SPIN_TRIES = 200;       // an idle writer (or a waiting caller) looks this often before parking
+
+    private Trie[] _shards;
+    private transient ShardWriter[] _writers;
+
+    public ShardedTrie(String name, int shardCount, boolean radix){
+        super(name, (NodeStore)null, radix);
+        if(shardCount < 1)
+            throw new IllegalArgumentException("Need at least one shard: " + shardCount);
+        _shards = new Trie[shardCount];
+        _writers = new ShardWriter[shardCount];
+        for(int i = 0; i < shardCount; ++i){
+            _shards[i] = new Trie(name + "_" + i, (NodeStore)null, radix);
+            _writers[i] = new ShardWriter(_shards[i], i);
+            _writers[i].start();
+        }
+    }
+
+    public int shardCount(){return _shards.length;}
+
+    // first characters are spread by a hash, neighbouring letters are often both common
+    private int shardIndex(char key){
+        return (int)(((key * 0x9E3779B9L) & 0xFFFFFFFFL) * _shards.length >>> 32);
+    }
+
+    @Override
+    Trie shardOf(char key){return _shards[shardIndex(key)];}
+
+    private Trie shardOf(CharSequence word){
+        return word.length() == 0 ? _shards[0] : shardOf(word.charAt(0));
+    }
+
+    private ShardWriter writerOf(String word){
+        return _writers[word.length() == 0 ? 0 : shardIndex(word.charAt(0))];
+    }
+
+    @Override
+    public int insert(String s){
+        if(s == null)
+            throw new IllegalArgumentException();
+        Change change = new Change(Change.INSERT);
+        change._word = s;
+        writerOf(s).apply(change);
+        return size();
+    }
+
+    @Override
+    public int insertAll(String[] words, boolean[] added){
+        if(words == null || added == null || added.length < words.length)
+            throw new IllegalArgumentException();
+        // one batch per shard, all of them in flight at once
+        List<List<Integer>> indexes = new ArrayList<>();
+        for(int i = 0; i < _shards.length; ++i)
+            indexes.add(new ArrayList<Integer>());
+        for(int k = 0; k < words.length; ++k)
+            indexes.get(words[k].length() == 0 ? 0 : shardIndex(words[k].charAt(0))).add(k);
+        Change[] changes = new Change[_shards.length];
+        for(int i = 0; i < _shards.length; ++i){
+            if(indexes.get(i).isEmpty())
+                continue;
+            changes[i] = new Change(Change.INSERT_ALL);
+            changes[i]._words = new String[indexes.get(i).size()];
+            changes[i]._added = new boolean[changes[i]._words.length];
+            for(int k = 0; k < changes[i]._words.length; ++k)
+                changes[i]._words[k] = words[indexes.get(i).get(k)];
+            _writers[i].submit(changes[i]);
+        }
+        for(int i = 0; i < _shards.length; ++i){
+            if(changes[i] == null)
+                continue;
+            changes[i].await();
+            for(int k = 0; k < changes[i]._added.length; ++k)
+                added[indexes.get(i).get(k)] = changes[i]._added[k];
+        }
+        return size();
+    }
+
+    @Override
+    public boolean remove(String word){
+        if(word == null || word.length() == 0)
+            return false;
+        Change change = new Change(Change.REMOVE);
+        change._word = word;
+        return writerOf(word).apply(change);
+    }
+
+    @Override
+    public boolean setWeight(String word, int weight){
+        if(word == null || weight < 1)
+            throw new IllegalArgumentException();
+        Change change = new Change(Change.WEIGHT);
+        change._word = word;
+        change._weight = weight;
+        return writerOf(word).apply(change);
+    }
+
+    @Override
+    public int size(){
+        int size = 0;
+        for(Trie shard : _shards)
+            size += shard.size();
+        return size;
+    }
+
+    @Override
+    public boolean query(CharSequence s){
+        if(s.length() > 0)
+            return shardOf(s.charAt(0)).query(s);
+        for(Trie shard : _shards)
+            if(shard.query(s))
+                return true;
+        return false;
+    }
+
+    @Override
+    public int count(String prefix){
+        return prefix.length() == 0 ? size() : shardOf(prefix.charAt(0)).count(prefix);
+    }
+
+    // toString and the binary SCAN go through here as well
+    @Override
+    public Iterator<String> words(String prefix, String after){
+        if(prefix == null)
+            throw new IllegalArgumentException();
+        if(prefix.length() > 0)
+            return shardOf(prefix.charAt(0)).words(prefix, after);
+        List<Iterator<String>> shardWords = new ArrayList<>();
+        for(Trie shard : _shards)
+            shardWords.add(shard.words(prefix, after));
+        return new MergedShards(shardWords);
+    }
+
+    @Override
+    public Iterator<String> matches(GlobPattern pattern){
+        int first = pattern.onlyNext(pattern.start());
+        if(first >= 0)
+            return shardOf((char)first).matches(pattern);
+        List<Iterator<String>> shardWords = new ArrayList<>();
+        for(Trie shard : _shards)
+            shardWords.add(shard.matches(pattern));
+        return new MergedShards(shardWords);
+    }
+
+    @Override
+    List<TrieCompletions.Completion> ranked(String prefix, int k){
+        if(prefix.length() > 0)
+            return shardOf(prefix.charAt(0)).ranked(prefix, k);
+        List<TrieCompletions.Completion> ranked = new ArrayList<>();
+        for(Trie shard : _shards)
+            ranked.addAll(shard.ranked(prefix, k));
+        Collections.sort(ranked, TrieCompletions.RANK);
+        return (ranked.size() > k) ? ranked.subList(0, k) : ranked;
+    }
+
+    // an edit can change the first character, so every shard is searched
+    @Override
+    public List<String> fuzzy(String word, int maxEdits, int limit){
+        if(word == null || maxEdits < 0 || limit < 0)
+            throw new IllegalArgumentException();
+        List<List<String>> byDistance = new ArrayList<>();
+        for(int distance = 0; distance <= maxEdits; ++distance)
+            byDistance.add(new ArrayList<String>());
+        for(Trie shard : _shards)
+            shard.collectFuzzy(word, maxEdits, byDistance);
+        List<String> matches = new ArrayList<>();
+        for(List<String> words : byDistance){
+            Collections.sort(words);
+            for(int k = 0; k < words.size() && matches.size() < limit; ++k)
+                matches.add(words.get(k));
+        }
+        return matches;
+    }
+
+    // FrozenTrie.freeze reads the trie from here: a root made up on the spot with every shard's top edges (their
+    // keys never overlap) and the empty word of shard 0
+    @Override
+    TrieNode root(){
+        TrieNode root = new TrieNode(-1);
+        root.aword = _shards[0].root().aword;
+        ChildTable<TrieNode> children = ChildTable.empty();
+        for(Trie shard : _shards){
+            ChildTable<TrieNode> shardChildren = shard.root().children();
+            for(int slot = 0; slot < shardChildren.slotCount(); ++slot)
+                if(shardChildren.childAt(slot) != null)
+                    children = children.with(shardChildren.keyAt(slot), shardChildren.labelAt(slot), shardChildren.childAt(slot));
+        }
+        root.children = children;
+        return root;
+    }
+
+    @Override
+    public void enableCompletions(){
+        for(Trie shard : _shards)
+            shard.enableCompletions();
+    }
+
+    @Override
+    public void enableBloomFilter(long expectedWords){
+        for(Trie shard : _shards)
+            shard.enableBloomFilter(Math.max(1, (expectedWords + _shards.length - 1) / _shards.length));
+    }
+
+    @Override
+    public String bloomStats(){
+        StringBuilder stats = new StringBuilder();
+        for(int i = 0; i < _shards.length; ++i){
+            String shardStats = _shards[i].bloomStats();
+            if(shardStats == null)
+                return null;
+            stats.append(i == 0 ? "" : " ").append("shard").append(i).append(": ").append(shardStats);
+        }
+        return stats.toString();
+    }
+
+    @Override
+    public void enableTiering(File coldFile, long heapBudgetBytes){
+        throw new IllegalStateException("Tiered storage can not be combined with shards");
+    }
+
+    @Override
+    public void setFrozenBase(FrozenTrie frozenBase){
+        throw new IllegalStateException("A frozen base can not be combined with shards");
+    }
+
+    @Override
+    public void setLog(TrieLog log){
+        throw new IllegalStateException("The write-ahead log can not be combined with shards");
+    }
+
+    @Override
+    public void close(){
+        for(ShardWriter writer : _writers)
+            writer.interrupt();
+        for(Trie shard : _shards)
+            shard.close();
+    }
+
+    // one change for a shard's writer, and its result once _done is set
+    private static final class Change {
+        static final byte INSERT = 1, INSERT_ALL = 2, REMOVE = 3, WEIGHT = 4;
+
+        final byte _op;
+        final Thread _caller = Thread.currentThread();
+        String _word;
+        String[] _words;
+        boolean[] _added;
+        int _weight;
+        boolean _result;
+        RuntimeException _failure;
+        volatile boolean _done;
+
+        Change(byte op){
+            _op = op;
+        }
+
+        // spins for a while (a writer that is keeping up answers within microseconds), then parks
+        boolean await(){
+            for(int i = 0; i < SPIN_TRIES && !_done; ++i)
+                Thread.yield();
+            while(!_done)
+                LockSupport.park(this);
+            if(_failure != null)
+                throw _failure;
+            return _result;
+        }
+    }
+
+    // The one thread that changes a shard. It parks only once its queue has stayed empty for a while; a caller that
+    // queues a change while it is parked (or about to) unparks it.
+    private static final class ShardWriter extends Thread {
+        private Trie _shard;
+        private MpmcRingBuffer<Change> _queue = new MpmcRingBuffer<>(QUEUE_CAPACITY);
+        private volatile boolean _parked;
+
+        ShardWriter(Trie shard, int index){
+            _shard = shard;
+            setDaemon(true);
+            setName("TrieShard-" + index);
+        }
+
+        boolean apply(Change change){
+            submit(change);
+            return change.await();
+        }
+
+        void submit(Change change){
+            while(!_queue.offer(change))
+                Thread.yield(); // full: the writer is behind, wait for it
+            if(_parked)
+                LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run(){
+            int idleTries = 0;
+            while(!isInterrupted()){
+                Change change = _queue.poll();
+                if(change != null){
+                    idleTries = 0;
+                    perform(change);
+                    continue;
+                }
+                if(++idleTries < SPIN_TRIES){
+                    Thread.yield();
+                    continue;
+                }
+                // say so before the last look, so a change queued in between is either seen here or unparks us
+                _parked = true;
+                if(!_queue.any())
+                    LockSupport.park(this);
+                _parked = false;
+                idleTries = 0;
+            }
+        }
+
+        private void perform(Change change){
+            try{
+                switch(change._op){
+                    case Change.INSERT:
+                        _shard.insert(change._word);
+                        break;
+                    case Change.INSERT_ALL:
+                        _shard.insertAll(change._words, change._added);
+                        break;
+                    case Change.REMOVE:
+                        change._result = _shard.remove(change._word);
+                        break;
+                    default:
+                        change._result = _shard.setWeight(change._word, change._weight);
+                }
+            }catch(RuntimeException e){
+                change._failure = e;
+            }
+            change._done = true;
+            LockSupport.unpark(change._caller);
+        }
+    }
+
+    // the shards' sorted words as one sorted sequence (no word is in two shards)
+    private static class MergedShards implements Iterator<String> {
+        private PriorityQueue<Head> _heads = new PriorityQueue<>();
+
+        MergedShards(List<Iterator<String>> shardWords){
+            for(Iterator<String> words : shardWords)
+                if(words.hasNext())
+                    _heads.add(new Head(words.next(), words));
+        }
+
+        @Override
+        public boolean hasNext(){return !_heads.isEmpty();}
+
+        @Override
+        public String next(){
+            Head head = _heads.poll();
+            if(head == null)
+                throw new NoSuchElementException();
+            String word = head._word;
+            if(head._rest.hasNext()){
+                head._word = head._rest.next();
+                _heads.add(head);
+            }
+            return word;
+        }
+
+        private static class Head implements Comparable<Head> {
+            String _word;
+            Iterator<String> _rest;
+
+            Head(String word, Iterator<String> rest){
+                _word = word;
+                _rest = rest;
+            }
+
+            @Override
+            public int compareTo(Head that){return _word.compareTo(that._word);}
+        }
+    }
+}
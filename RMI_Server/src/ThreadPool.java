@@ -1,14 +1,17 @@
 import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThreadPool
 {
     private int _maxCapacity;
     private int _minThreadCount;
-    private int _actualNumberThreads;
-    private ArrayList<WorkerThread> _runningThreads;
-    private ArrayList<WorkerThread> _waitingThreads;
-    private boolean _stopped;
+    private volatile int _actualNumberThreads;
+    private Set<WorkerThread> _workerThreads;
+    private AtomicInteger _waitingCount;
+    private volatile boolean _stopped;
     private JobQueue _jobQueue;
     private Object _threadCountLock;
     private ServerSocket _mainThreadSocket;
@@ -25,8 +28,8 @@ public class ThreadPool
         _maxCapacity = maxCapacity;
         _actualNumberThreads = startingThreadCount;
         _minThreadCount = startingThreadCount;
-        _runningThreads = new ArrayList<>();
-        _waitingThreads = new ArrayList<>();
+        _workerThreads = Collections.newSetFromMap(new ConcurrentHashMap<WorkerThread, Boolean>());
+        _waitingCount = new AtomicInteger();
         _jobQueue = jobQueue;
         _threadCountLock = new Object();
         _mainThreadSocket = mainThreadSocket;
@@ -37,59 +40,61 @@ public class ThreadPool
     public Trie getTrie(){return _trie;}
 
     private void startPool(int initialThreadCount) {
+        WorkerThread[] initialThreads = new WorkerThread[initialThreadCount];
         for(int i = 0; i < initialThreadCount; ++i){
-            WorkerThread thisWorkerThread = new WorkerThread(_jobQueue, this);
-            _waitingThreads.add(thisWorkerThread);
-            thisWorkerThread.start();
+            initialThreads[i] = startWorkerThread();
         }
 
         int waitingCount = 0;
         while(waitingCount < initialThreadCount){
             waitingCount = 0;
             for(int i = 0; i < initialThreadCount; ++i)
-                waitingCount += (_waitingThreads.get(i).getState() == Thread.State.WAITING) ? 1 : 0;
+                waitingCount += (initialThreads[i].getState() == Thread.State.WAITING) ? 1 : 0;
         }
         _actualNumberThreads = initialThreadCount;
 
     }
 
+    // New workers start out counted as waiting, they are about to block in fetchJob
+    private WorkerThread startWorkerThread(){
+        WorkerThread thisThread = new WorkerThread(_jobQueue, this);
+        _workerThreads.add(thisThread);
+        _waitingCount.incrementAndGet();
+        thisThread.start();
+        return thisThread;
+    }
+
     public int getWaitingCount(){
-        synchronized (_waitingThreads) {
-            return _waitingThreads.size();
-        }
+        return _waitingCount.get();
     }
 
+    // The running/waiting bookkeeping is a state flag on the worker plus a counter, so moving a worker on every
+    // job is a CAS instead of a list scan under a shared monitor.
     public void moveThreadToWaitingList(WorkerThread workerThread){
         if(workerThread == null){
             throw new IllegalArgumentException();
         }
-        synchronized (_runningThreads) {
-            if (_runningThreads.contains(workerThread))
-                _runningThreads.remove(workerThread);
-            else
-                return;
-        }
-
-        synchronized (_waitingThreads){
-            _waitingThreads.add(workerThread);
-        }
+        if(workerThread.changeState(WorkerThread.RUNNING, WorkerThread.WAITING))
+            _waitingCount.incrementAndGet();
     }
 
-    public void moveThreadToRunningList(WorkerThread workerThread){
+    // Returns false if the worker was retired by decreaseThreadsInPool while it was waiting
+    public boolean moveThreadToRunningList(WorkerThread workerThread){
         if(workerThread == null){
             throw new IllegalArgumentException();
         }
+        if(!workerThread.changeState(WorkerThread.WAITING, WorkerThread.RUNNING))
+            return workerThread.state() == WorkerThread.RUNNING;
+        _waitingCount.decrementAndGet();
+        return true;
+    }
 
-        synchronized (_waitingThreads){
-            if(_waitingThreads.contains(workerThread))
-                _waitingThreads.remove(workerThread);
-            else
-                return;
-        }
-
-        synchronized (_runningThreads) {
-            _runningThreads.add(workerThread);
-        }
+    public void workerExited(WorkerThread workerThread){
+        if(!_workerThreads.remove(workerThread))
+            return;
+        // a worker that leaves on its own (stop, error) may still be counted as waiting
+        if(workerThread.changeState(WorkerThread.WAITING, WorkerThread.RETIRED))
+            _waitingCount.decrementAndGet();
     }
 
 
@@ -104,12 +109,8 @@ public class ThreadPool
                 return;
             }
 
-            synchronized (_waitingThreads){
-                for(int i = 0; i < noThreadsToCreate; ++i) {
-                    WorkerThread thisThread = new WorkerThread(_jobQueue, this);
-                    _waitingThreads.add(thisThread);
-                    thisThread.start();
-                }
+            for(int i = 0; i < noThreadsToCreate; ++i) {
+                startWorkerThread();
             }
 
             _actualNumberThreads = newThreadCount;
@@ -122,24 +123,25 @@ public class ThreadPool
         if(_stopped)
             return;
         synchronized (_threadCountLock) {
-            synchronized (_waitingThreads) {
-                int newThreadCount = Math.max(_actualNumberThreads / 2, _minThreadCount);
-                int noThreadsToRemove = _actualNumberThreads - newThreadCount;
-                if (noThreadsToRemove == 0 || _waitingThreads.isEmpty()) {
-                    return;
-                }
-
-
-                if (_waitingThreads.size() < noThreadsToRemove) {
-                    return;
-                }
-
-                for (int i = 0; i < noThreadsToRemove; ++i) {
-                    WorkerThread thisThread = _waitingThreads.remove(0);
-                    thisThread.interrupt();
-                }
-                _actualNumberThreads = newThreadCount;
+            int newThreadCount = Math.max(_actualNumberThreads / 2, _minThreadCount);
+            int noThreadsToRemove = _actualNumberThreads - newThreadCount;
+            if (noThreadsToRemove == 0 || _waitingCount.get() < noThreadsToRemove) {
+                return;
             }
+
+            // Only retire workers that are still waiting; one that just picked up a job keeps it
+            int noThreadsRemoved = 0;
+            for (WorkerThread thisThread : _workerThreads) {
+                if (noThreadsRemoved == noThreadsToRemove)
+                    break;
+                if (!thisThread.changeState(WorkerThread.WAITING, WorkerThread.RETIRED))
+                    continue;
+                _waitingCount.decrementAndGet();
+                _workerThreads.remove(thisThread);
+                thisThread.retire();
+                ++noThreadsRemoved;
+            }
+            _actualNumberThreads -= noThreadsRemoved;
         }
     }
 
@@ -149,21 +151,11 @@ public class ThreadPool
         (new Thread(new Runnable(){
         @Override
         public void run(){
-            synchronized (_runningThreads) {
-                for (WorkerThread thisThread : _runningThreads) {
-                    thisThread.interrupt();
-                    try{thisThread.join();}catch(Exception ex){}
-                }
-                _runningThreads.clear();
-            }
-
-            synchronized (_waitingThreads) {
-                for (WorkerThread thisThread : _waitingThreads) {
-                    thisThread.interrupt();
-                    try{thisThread.join();}catch(Exception ex){}
-                }
-                _waitingThreads.clear();
+            for (WorkerThread thisThread : _workerThreads) {
+                thisThread.interrupt();
+                try{thisThread.join();}catch(Exception ex){}
             }
+            _workerThreads.clear();
             try{_mainThreadSocket.close();}catch(Exception ex){};
         }
         })).start();
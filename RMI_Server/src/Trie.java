@@ -1,33 +1,403 @@
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
 
+// Safe to share between worker threads. Every published children table is an immutable snapshot that writers replace
+// (copy-on-write) while holding the owning node's monitor, so query and toString never lock or wait, and inserts
+// only contend when they add an edge to the same node. remove prunes bottom up, locking parent then child; a node
+// that has been pruned is flagged so a writer that raced with the prune starts over from the root.
+// In radix mode a run of single-child characters is stored as one labelled edge. Labels live in the parent's
+// children table, so splitting an edge on insert or merging one on remove is a single table swap on the parent.
+// A trie can sit on top of a read-only FrozenTrie base: the base answers for the words it holds and only the words
+// added since (the delta) live in nodes. Words of the base can not be removed.
+// With a NodeStore (-fs) every change is also written to the node's record, while holding the same locks that order
+// the change in memory; a trie opened on an existing store is rebuilt from its records.
+// With a TrieLog (-wal) every change to the word set is appended to the log after it is made but before the lock
+// that ordered it is released, and the caller then waits for the record to be durable (see TrieLog).
+// With completions on (-complete) every node also caches the heaviest words of its subtree, see TrieCompletions.
+// With a BloomFilter (-bloom) in front, a query for a prefix no word has is answered without walking the nodes.
+// Every node counts the words at and below it, so count(prefix) is one walk down. A change adjusts the counts on its
+// word's path once it is made, walking the path again as it then stands. In radix mode that walk holds a shared
+// stamp and an edge split an exclusive one, so the new middle node starts from a count no walk is still changing.
 public class Trie implements Serializable{
-	private int _size;
-	private int _highestNodeId;
-	private boolean _useFilesystem;
+	private static final long NODE_STORE_FORCE_INTERVAL_MILLIS = 1000; // for ForcePolicy.PERIODIC
+	private static final AtomicIntegerFieldUpdater<TrieNode> SUBTREE_WORDS =
+			AtomicIntegerFieldUpdater.newUpdater(TrieNode.class, "_subtreeWords");
+
+	private AtomicInteger _size;
+	private AtomicInteger _highestNodeId;
+	private transient NodeStore _nodeStore;
+	private transient TrieLog _log;
+	private transient TrieSnapshot _snapshotter;
+	private transient volatile boolean _recovering;
+	private transient TrieTier _tier;
+	private transient TrieCompletions _completions;
+	private transient volatile BloomFilter _bloom;
+	private StampedLock _countLock = new StampedLock(); // radix mode, see countWord
+	private boolean _radix;
 	private String _name;
 	private TrieNode root;
+	private transient FrozenTrie _frozenBase;
 
 	public Trie(String name, boolean useFileSystem) {
+		this(name, useFileSystem, false);
+	}
+
+	public Trie(String name, boolean useFileSystem, boolean radix) {
+		this(name, useFileSystem ? openNodeStore(name, NodeStore.ForcePolicy.PERIODIC) : null, radix);
+	}
+
+	public Trie(String name, NodeStore nodeStore, boolean radix) {
 		_name = (name == null) ? "" : name.trim();
 
-		root = new TrieNode(0);
-		_size = 0;
-		_highestNodeId = 0;
-		_useFilesystem = useFileSystem;
+		_size = new AtomicInteger();
+		_highestNodeId = new AtomicInteger();
+		root = new TrieNode(_highestNodeId.getAndIncrement());
+		_nodeStore = nodeStore;
+		_radix = radix;
+
+		if(_nodeStore != null){
+			root._slot = NodeStore.ROOT_SLOT;
+			loadFromNodeStore();
+		}
+	}
+
+	public static String getNodeStoreFilename(String name){
+		return "Trie_" + ((name == null) ? "" : name.trim()) + ".nodes";
+	}
+
+	public static NodeStore openNodeStore(String name, NodeStore.ForcePolicy forcePolicy){
+		try{
+			return new NodeStore(new File(getNodeStoreFilename(name)), forcePolicy, NODE_STORE_FORCE_INTERVAL_MILLIS);
+		}catch(IOException e){
+			throw new IllegalStateException("Unable to open node store " + getNodeStoreFilename(name), e);
+		}
+	}
+
+	// rebuilds the nodes from the records of a store written by an earlier run
+	private void loadFromNodeStore(){
+		int highWater = _nodeStore.highWater();
+		TrieNode[] nodes = new TrieNode[highWater];
+		nodes[NodeStore.ROOT_SLOT] = root;
+		root.aword = _nodeStore.isWord(NodeStore.ROOT_SLOT);
+		int highestId = 0;
+		for(int slot = NodeStore.ROOT_SLOT + 1; slot < highWater; ++slot){
+			if(!_nodeStore.isNode(slot))
+				continue;
+			TrieNode node = new TrieNode(_nodeStore.idOf(slot));
+			node._slot = slot;
+			node.aword = _nodeStore.isWord(slot);
+			nodes[slot] = node;
+			highestId = Math.max(highestId, node._id);
+		}
+		_highestNodeId.set(highestId + 1);
+
+		for(int slot = NodeStore.ROOT_SLOT + 1; slot < highWater; ++slot){
+			if(nodes[slot] == null)
+				continue;
+			int parentSlot = _nodeStore.parentOf(slot);
+			TrieNode parent = (parentSlot > 0 && parentSlot < highWater) ? nodes[parentSlot] : null;
+			if(parent != null)
+				parent.addChild(_nodeStore.keyOf(slot), _nodeStore.labelOf(slot), nodes[slot]);
+		}
+
+		// Records a crash left behind part way through a change hang off a freed parent, off another such record, or
+		// lost their edge to a later record with the same parent and key. Only what the root reaches is the trie: the
+		// words are counted there, and every other record is freed now, before its parent's slot can be handed out
+		// again and adopt it.
+		boolean[] reachable = new boolean[highWater];
+		Deque<TrieNode> stack = new ArrayDeque<>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			TrieNode node = stack.pop();
+			reachable[node._slot] = true;
+			if(node.aword)
+				_size.incrementAndGet();
+			ChildTable<TrieNode> children = node.children();
+			for(int slot = 0; slot < children.slotCount(); ++slot)
+				if(children.childAt(slot) != null)
+					stack.push(children.childAt(slot));
+		}
+		for(int slot = NodeStore.ROOT_SLOT + 1; slot < highWater; ++slot)
+			if(nodes[slot] != null && !reachable[slot])
+				_nodeStore.free(slot);
+		for(Iterator<String> words = new WordIterator("", null); words.hasNext(); )
+			countWord(words.next(), 1);
+	}
+
+	public void close(){
+		if(_nodeStore != null)
+			_nodeStore.close();
+		if(_log != null)
+			_log.close();
+	}
+
+	// attach once the trie has been recovered, see TrieSnapshot.recover
+	public void setLog(TrieLog log){
+		if(log == null)
+			throw new IllegalArgumentException();
+		_log = log;
+	}
+
+	TrieLog log(){return _log;}
+
+	// takes the snapshots for the log, see TrieSnapshot.recover; a bulk load persists through it
+	void setSnapshotter(TrieSnapshot snapshotter){_snapshotter = snapshotter;}
+
+	boolean hasCompletions(){return _completions != null;}
+
+	// the trie whose root holds the edge for key: this one, or its shard for a ShardedTrie
+	Trie shardOf(char key){return this;}
+
+	// Keeps about heapBudgetBytes worth of nodes on the heap and evicts the rest to coldFile, see TrieTier.
+	// Must be turned on while the trie is still empty and is not combined with a NodeStore.
+	public void enableTiering(File coldFile, long heapBudgetBytes) throws IOException{
+		if(_nodeStore != null)
+			throw new IllegalStateException("Tiered storage can not be combined with a node store");
+		if(_completions != null)
+			throw new IllegalStateException("Tiered storage can not be combined with completions");
+		if(_tier != null || root.hasChildren())
+			throw new IllegalStateException("Tiered storage has to be enabled on an empty trie");
+		_tier = new TrieTier(this, coldFile, heapBudgetBytes);
+		_tier.addResidentNodes(1); // the root
+		_tier.start();
+	}
+
+	// Caches ranked completions in every node, building them for what the trie already holds. Nothing may change
+	// the trie while this runs, so it is turned on before the trie is shared or while changes are still refused
+	// (recovery). Evicted subtrees would lose their lists, so it is not combined with tiered storage.
+	public void enableCompletions(){
+		if(_tier != null)
+			throw new IllegalStateException("Completions can not be combined with tiered storage");
+		if(_completions != null)
+			return;
+		TrieCompletions completions = new TrieCompletions(this);
+		completions.rebuild();
+		_completions = completions;
+	}
+
+	// Puts a Bloom filter sized for expectedWords in front of query, filled with the words the trie's delta already
+	// holds. Like enableCompletions, nothing may change the trie while this runs.
+	public void enableBloomFilter(long expectedWords){
+		BloomFilter bloom = new BloomFilter(expectedWords);
+		for(Iterator<String> words = new WordIterator("", null); words.hasNext(); )
+			bloom.add(words.next());
+		_bloom = bloom;
+	}
+
+	// a filter that already matches the delta, loaded alongside a snapshot
+	void setBloomFilter(BloomFilter bloom){
+		if(bloom == null)
+			throw new IllegalArgumentException();
+		_bloom = bloom;
+	}
+
+	BloomFilter bloomFilter(){return _bloom;}
+
+	// negative lookups saved and false positive rate of the Bloom filter, or null when it is off
+	public String bloomStats(){
+		BloomFilter bloom = _bloom;
+		return bloom == null ? null : bloom.stats();
+	}
+
+	// hit, miss and eviction counters of the tiered storage, or null when it is off
+	public String tierStats(){
+		return _tier == null ? null : _tier.stats();
+	}
+
+	// set while the trie is still being restored from disk; it can be read, but changes are not logged yet
+	public void setRecovering(boolean recovering){_recovering = recovering;}
+
+	public boolean isRecovering(){return _recovering;}
+
+	private long log(byte op, String word){
+		return _log == null ? 0 : _log.append(op, word);
+	}
+
+	// called before a change is made, so a change that could never be logged is not made either
+	private void checkLog(){
+		if(_log != null)
+			_log.checkWritable();
+	}
+
+	private void awaitLog(long lsn){
+		if(_log != null)
+			_log.awaitDurable(lsn);
+	}
+
+	// a node for a subtree being rebuilt off to the side (snapshot loading), published later with attachRootChild
+	TrieNode newDetachedNode(){
+		if(_tier != null)
+			_tier.addResidentNodes(1);
+		return new TrieNode(_highestNodeId.getAndIncrement());
+	}
+
+	// publishes a rebuilt subtree holding wordCount words under the root, replacing whatever was on that edge
+	void attachRootChild(char key, char[] label, TrieNode child, int wordCount){
+		synchronized (root){
+			root.addChild(key, label, child);
+		}
+		_size.addAndGet(wordCount);
+	}
+
+	// A node of a subtree being bulk loaded off to the side (see BulkLoader). Its NodeStore record is written as part
+	// of a batch, under a parent that is not linked to the root yet, so a crash before the batch ends leaves it an orphan.
+	TrieNode newLoadedNode(TrieNode parent, char key, char[] label, boolean aword){
+		TrieNode node = newDetachedNode();
+		node.aword = aword;
+		if(_nodeStore != null){
+			node._slot = _nodeStore.allocate();
+			_nodeStore.createInBatch(node._slot, node._id, parent._slot, key, label, aword);
+		}
+		return node;
+	}
+
+	// moves a loaded node under a new parent (an edge split while building in radix mode)
+	void relinkLoadedNode(TrieNode node, TrieNode parent, char key, char[] label){
+		if(_nodeStore != null)
+			_nodeStore.relinkInBatch(node._slot, parent._slot, key, label);
 	}
 
+	// Publishes bulk loaded subtrees under the root with one table swap, their word counts and completions already
+	// built, then persists them as one batch: the NodeStore is forced once, or with -wal a snapshot is taken (their
+	// words are not logged one by one). A subtree whose key the root already has (someone inserted a word starting
+	// with it meanwhile) is not attached; attached[k] tells the caller which ones to insert word by word instead.
+	boolean[] attachLoadedSubtrees(char[] keys, char[][] labels, TrieNode[] subtrees) throws IOException{
+		boolean[] attached = new boolean[subtrees.length];
+		int wordCount = 0;
+		long stamp = (_tier == null) ? 0 : _tier.beginChange();
+		try{
+			synchronized (root){
+				ChildTable<TrieNode> children = root.children();
+				for(int k = 0; k < subtrees.length; ++k){
+					if(children.slotOf(keys[k]) >= 0)
+						continue;
+					if(_nodeStore != null)
+						_nodeStore.relinkInBatch(subtrees[k]._slot, root._slot, keys[k], labels[k]);
+					children = children.with(keys[k], labels[k], subtrees[k]);
+					wordCount += subtrees[k]._subtreeWords;
+					attached[k] = true;
+				}
+				root.children = children;
+				if(_completions != null)
+					_completions.refreshRoot();
+			}
+			_size.addAndGet(wordCount);
+		}finally{
+			if(_tier != null)
+				_tier.endChange(stamp);
+		}
+		if(_nodeStore != null)
+			_nodeStore.endBatch();
+		if(_snapshotter != null)
+			_snapshotter.snapshot();
+		return attached;
+	}
+
+	// gives back the records and resident count of a loaded subtree that was not attached
+	void discardLoadedSubtree(TrieNode subtree){
+		List<TrieNode> nodes = new ArrayList<>();
+		nodes.add(subtree);
+		while(!nodes.isEmpty()){
+			TrieNode node = nodes.remove(nodes.size() - 1);
+			ChildTable<TrieNode> children = node.children;
+			for(int slot = 0; slot < children.slotCount(); ++slot)
+				if(children.childAt(slot) != null)
+					nodes.add(children.childAt(slot));
+			if(_nodeStore != null)
+				_nodeStore.free(node._slot);
+			if(_tier != null)
+				_tier.addResidentNodes(-1);
+		}
+	}
+
+	void restoreRootWord(){
+		synchronized (root){
+			if(root.aword)
+				return;
+			root.aword = true;
+		}
+		_size.incrementAndGet();
+	}
+
+	public boolean isRadix(){return _radix;}
+
+	// Must be set before the trie is shared. The delta is either empty or was reloaded from the node store (-fs -frozen
+	// after a restart); delta words the base also has, left from a run with another base, are dropped from the delta so
+	// that size and counts hold each word once.
+	public void setFrozenBase(FrozenTrie frozenBase){
+		if(frozenBase == null)
+			throw new IllegalArgumentException();
+		if(_frozenBase != null)
+			throw new IllegalStateException("The trie already has a frozen base");
+		List<String> duplicates = new ArrayList<>();
+		for(Iterator<String> words = words("", null); words.hasNext(); ){
+			String word = words.next();
+			if(frozenBase.containsWord(word))
+				duplicates.add(word);
+		}
+		for(String word : duplicates)
+			removeWord(word);
+		_frozenBase = frozenBase;
+		_size.addAndGet(frozenBase.wordCount());
+	}
+
+	FrozenTrie frozenBase(){return _frozenBase;}
+
+	TrieNode root(){return root;}
+
 
 	public class TrieNode implements Serializable, Comparable<TrieNode> {
-		public TreeMap<Character, TrieNode> children = new TreeMap<>();//TreeMap is java build-in structure,
-		public boolean aword;			                    //Basically it acts like a Hashtable or Hashmap, establishing a mapping between Key and Value
-		public int _id;                                     //Unlike hash table, keys in TreeMap are sorted!
+		public volatile ChildTable<TrieNode> children = ChildTable.empty(); //sorted by character, see ChildTable
+		public volatile boolean aword;
+		public int _id;
+		transient int _slot = -1;                           //record in the NodeStore, if any
+		volatile boolean _removed;                          //set once the node has been pruned from the trie
+		transient volatile long _coldOffset = -1;           //where the subtree was evicted to, see TrieTier
+		transient int _coldLength;                          //written before _coldOffset, read after it
+		transient long _cleanOffset = -1;                   //evicted copy still matching the faulted in subtree
+		transient boolean _referenced;                      //CLOCK reference bit, see TrieTier
+		transient volatile int _weight;                     //times inserted or the score set, see TrieCompletions
+		transient volatile TrieCompletions.Completion[] _completions; //heaviest words below, null for none
+		volatile int _subtreeWords;                         //words at and below this node, see count
+
+		// The children to read through. A subtree evicted by TrieTier leaves an empty table behind and is faulted
+		// back in here, so only an empty table needs a second look.
+		public ChildTable<TrieNode> children(){
+			ChildTable<TrieNode> table = children;
+			if(!table.isEmpty())
+				return table;
+			if(_coldOffset < 0)
+				return children; // read again, a fault-in publishes the table before clearing _coldOffset
+			return _tier.faultIn(this);
+		}
+
+		boolean isCold(){return _coldOffset >= 0;}
+
+		// the evicted subtree in TrieSnapshot's encoding, or null while it is resident
+		byte[] coldEntry(){
+			return _coldOffset < 0 ? null : _tier.readCold(this);
+		}
+
+		// all must be called holding this node's monitor, the published table is never modified in place
+		void addChild(char ch, TrieNode child){
+			children = children.with(ch, child);
+		}
+
+		void addChild(char ch, char[] label, TrieNode child){
+			children = children.with(ch, label, child);
+		}
+
+		void removeChild(char ch){
+			children = children.without(ch);
+		}
 
         public boolean hasChildren(){
-            return children != null && !children.isEmpty();
+            return !children().isEmpty();
         }
 
 		@Override
@@ -53,142 +423,894 @@ public class Trie implements Serializable{
 		}
 	}// end TrieNode class
 
+	// returns the number of words in the trie afterwards
 	public int insert(String s) {
-		return insert(root,s);
+		if(_frozenBase != null && _frozenBase.containsWord(s))
+			return _size.get();
+		checkLog();
+		// the filter has to know the word before a query can find it; it is taken back out if it was not new
+		BloomFilter bloom = _bloom;
+		if(bloom != null)
+			bloom.add(s);
+		long[] lsn = new long[1];
+		boolean added;
+		if(_tier == null)
+			added = insert(root, s, lsn);
+		else{
+			long stamp = _tier.beginChange();
+			try{
+				added = insert(root, s, lsn);
+			}finally{
+				_tier.endChange(stamp);
+			}
+		}
+		if(bloom != null && !added)
+			bloom.remove(s);
+		if(_completions != null)
+			_completions.update(s);
+		awaitLog(lsn[0]);
+		return added ? _size.incrementAndGet() : _size.get();
+	}
+
+	// Inserts a batch of words, waiting for the log once for all of them; added[k] tells whether words[k] was new.
+	// Returns the number of words in the trie afterwards.
+	public int insertAll(String[] words, boolean[] added) {
+		if(words == null || added == null || added.length < words.length)
+			throw new IllegalArgumentException();
+		checkLog();
+		long[] lsn = new long[1];
+		int addedCount = 0;
+		BloomFilter bloom = _bloom;
+		long stamp = (_tier == null) ? 0 : _tier.beginChange();
+		try{
+			for(int k = 0; k < words.length; ++k){
+				boolean insertable = words[k].length() > 0 && !(_frozenBase != null && _frozenBase.containsWord(words[k]));
+				if(insertable && bloom != null)
+					bloom.add(words[k]);
+				added[k] = insertable && insert(root, words[k], lsn);
+				if(added[k])
+					++addedCount;
+				else if(insertable && bloom != null)
+					bloom.remove(words[k]);
+				if(_completions != null && words[k].length() > 0)
+					_completions.update(words[k]);
+			}
+		}finally{
+			if(_tier != null)
+				_tier.endChange(stamp);
+		}
+		awaitLog(lsn[0]);
+		return _size.addAndGet(addedCount);
 	}
+
+	public int size(){return _size.get();}
 	
 	public boolean remove(String word){
-		if(word == null || word.length() == 0 || !query(word))
-			return false;
+		checkLog();
+		if(_tier == null)
+			return removeWord(word);
+		long stamp = _tier.beginChange();
+		try{
+			return removeWord(word);
+		}finally{
+			_tier.endChange(stamp);
+		}
+	}
 
-		Stack<TrieNode> backTrace = new Stack<>();
+	private boolean removeWord(String word){
+		if(word == null || word.length() == 0)
+			return false;
 
 		TrieNode thisNode = root;
-		backTrace.push(root);
-		for(char thisChar : word.toCharArray()){
-			thisNode = thisNode.children.get(thisChar);
-			backTrace.push(thisNode);
+		long lsn;
+		int depth = 0;
+		for(int i = 0; i < word.length(); ){
+			ChildTable<TrieNode> children = thisNode.children();
+			int slot = children.slotOf(word.charAt(i));
+			if(slot < 0)
+				return false;
+			char[] label = children.labelAt(slot);
+			if(matchLabel(label, word, i + 1) != label.length)
+				return false; // the word ends inside (or leaves) this edge
+			thisNode = children.childAt(slot);
+			i += 1 + label.length;
+			if(_tier != null && ++depth == TrieTier.UNIT_DEPTH)
+				_tier.touchForChange(thisNode);
 		}
 
-		thisNode.aword = false;
-		_size--;
+		synchronized (thisNode){
+			// a pruned node was never a word, so the word was already gone
+			if(thisNode._removed || !thisNode.aword)
+				return false;
+			thisNode.aword = false;
+			thisNode._weight = 0;
+			// counted while the node can not be pruned, so the walk finds the node the insert counted
+			countWord(word, -1);
+			if(_nodeStore != null)
+				_nodeStore.setWord(thisNode._slot, false);
+			lsn = log(TrieLog.REMOVE, word);
+		}
+		_size.decrementAndGet();
 
-		if(_useFilesystem)
-			removeNodeFromFs(thisNode);
+		while(!cleanUp(word))
+			;
+		// only now that no query can find the word any more
+		BloomFilter bloom = _bloom;
+		if(bloom != null)
+			bloom.remove(word);
+		if(_completions != null)
+			_completions.update(word);
+		awaitLog(lsn);
+		return true;
+	}
 
-		backTrace.pop();
-		TrieNode parent = backTrace.pop();
-		int charIndex = word.length() - 1;
+	// Adds delta to the word count of every node on word's path below the root (the root's is size()). Changes call
+	// it holding the monitor of the node word ends at, the one that sets or clears aword: that node can not be pruned
+	// meanwhile, so the walk ends on the very node whose aword changed, and an insert's count can not land on a node
+	// that a remove and a later insert of the same word have put in its place.
+	private void countWord(String word, int delta){
+		long stamp = _radix ? _countLock.readLock() : 0;
+		try{
+			countPath(word, delta);
+		}finally{
+			if(_radix)
+				_countLock.unlockRead(stamp);
+		}
+	}
 
-		while(!backTrace.isEmpty()){
-			thisNode = parent;
-			parent.children.remove(word.charAt(charIndex--));
-		if(_useFilesystem)
-			writeNodeToFS(thisNode);
-			parent = backTrace.pop();
+	// countWord for a caller that already holds _countLock (or needs none)
+	private void countPath(String word, int delta){
+		TrieNode node = root;
+		for(int i = 0; i < word.length(); ){
+			ChildTable<TrieNode> children = node.children();
+			int slot = children.slotOf(word.charAt(i));
+			if(slot < 0)
+				return;
+			char[] label = children.labelAt(slot);
+			if(matchLabel(label, word, i + 1) != label.length)
+				return;
+			node = children.childAt(slot);
+			i += 1 + label.length;
+			SUBTREE_WORDS.addAndGet(node, delta);
+		}
+	}
 
-			if(!parent.children.isEmpty())
-				break;
+	// The number of words starting with prefix, the frozen base's included, in O(prefix length) for the delta
+	public int count(String prefix) {
+		if(prefix == null)
+			throw new IllegalArgumentException();
+		if(prefix.isEmpty())
+			return size();
+		int baseCount = (_frozenBase == null) ? 0 : _frozenBase.countWords(prefix);
+		TrieNode node = root;
+		for(int i = 0; i < prefix.length(); ){
+			ChildTable<TrieNode> children = node.children();
+			int slot = children.slotOf(prefix.charAt(i++));
+			if(slot < 0)
+				return baseCount;
+			char[] label = children.labelAt(slot);
+			for(int j = 0; j < label.length && i < prefix.length(); ++j, ++i)
+				if(label[j] != prefix.charAt(i))
+					return baseCount;
+			node = children.childAt(slot);
+		}
+		// a change in flight may have adjusted only part of its path so far
+		return baseCount + Math.max(node._subtreeWords, 0);
+	}
 
+	private static final int PRUNED = 0, DONE = 1, STALE = 2;
 
+	// Prunes the nodes along word's path that no longer lead to a word, and in radix mode merges the pass-through
+	// node that leaves behind. Returns false if a concurrent edge split moved a node under a new parent, in which
+	// case the caller walks the path again.
+	private boolean cleanUp(String word){
+		// path[k] is reached from path[k - 1] over the edge keyed keys[k - 1]
+		TrieNode[] path = new TrieNode[word.length() + 1];
+		char[] keys = new char[word.length()];
+		int depth = 0;
+		path[0] = root;
+		for(int i = 0; i < word.length(); ++depth){
+			ChildTable<TrieNode> children = path[depth].children();
+			int slot = children.slotOf(word.charAt(i));
+			if(slot < 0)
+				return true;
+			char[] label = children.labelAt(slot);
+			if(matchLabel(label, word, i + 1) != label.length)
+				return true; // already merged into a longer edge
+			keys[depth] = word.charAt(i);
+			path[depth + 1] = children.childAt(slot);
+			i += 1 + label.length;
 		}
 
-
+		for(int k = depth; k > 0; --k){
+			int result = pruneOrMerge(path[k - 1], keys[k - 1], path[k]);
+			if(result == STALE)
+				return false;
+			if(result == DONE)
+				break;
+		}
 		return true;
 	}
 
-	private int insert(TrieNode root, String s) {
-		TrieNode cur = root;
-		for (char ch : s.toCharArray()) {
-			TrieNode next = cur.children.get(ch);
-			if (next == null)
-				cur.children.put(ch, next = createNewNode());
-			cur = next;
+	// PRUNED if node was removed from parent, in which case the parent may have become prunable (or mergeable) too
+	private int pruneOrMerge(TrieNode parent, char key, TrieNode node){
+		int result;
+		synchronized (parent){
+			synchronized (node){
+				if(node._removed || node.aword)
+					return DONE;
+				ChildTable<TrieNode> children = parent.children();
+				int slot = children.slotOf(key);
+				if(parent._removed || slot < 0 || children.childAt(slot) != node)
+					return STALE;
+
+				ChildTable<TrieNode> nodeChildren = node.children();
+				if(nodeChildren.isEmpty()){
+					node._removed = true;
+					parent.removeChild(key);
+					if(_tier != null)
+						_tier.addResidentNodes(-1);
+					if(_nodeStore != null)
+						_nodeStore.free(node._slot);
+					result = PRUNED;
+				}
+				else if(_radix && nodeChildren.size() == 1){
+					// node is just a pass-through now, fold it into the parent's edge
+					int onlySlot = 0;
+					while(nodeChildren.childAt(onlySlot) == null)
+						++onlySlot;
+					char[] parentLabel = children.labelAt(slot), childLabel = nodeChildren.labelAt(onlySlot);
+					char[] merged = new char[parentLabel.length + 1 + childLabel.length];
+					System.arraycopy(parentLabel, 0, merged, 0, parentLabel.length);
+					merged[parentLabel.length] = nodeChildren.keyAt(onlySlot);
+					System.arraycopy(childLabel, 0, merged, parentLabel.length + 1, childLabel.length);
+
+					node._removed = true;
+					parent.addChild(key, merged, nodeChildren.childAt(onlySlot));
+					if(_tier != null)
+						_tier.addResidentNodes(-1);
+					if(_nodeStore != null){
+						_nodeStore.relink(nodeChildren.childAt(onlySlot)._slot, parent._slot, key, merged);
+						_nodeStore.free(node._slot);
+					}
+					result = DONE;
+				}
+				else
+					return DONE;
+			}
 		}
-		cur.aword = true;
-		if(_useFilesystem)
-			writeNodeToFS(cur);
-		return ++_size;
+		return result;
 	}
 
-	private TrieNode createNewNode(){
-		TrieNode newNode = new TrieNode(_highestNodeId++);
+	// Returns whether s was new. The lsn of its log record, if any, is raised into lsn[0] for the caller to wait for
+	// once it holds no monitors.
+	private boolean insert(TrieNode root, String s, long[] lsn) {
+		retry:
+		while(true) {
+			TrieNode cur = root;
+			int i = 0, depth = 0;
+			while (i < s.length()) {
+				char ch = s.charAt(i);
+				ChildTable<TrieNode> children = cur.children();
+				int slot = children.slotOf(ch);
 
-		if(_useFilesystem)
-			writeNodeToFS(newNode);
+				if (slot < 0) {
+					// nothing past this point yet, hang the rest of the word off cur
+					synchronized (cur) {
+						if (cur._removed)
+							continue retry;
+						if (cur.children != children)
+							continue; // changed under us, look again
+						lsn[0] = Math.max(lsn[0], appendSuffix(cur, s, i));
+					}
+					return true;
+				}
 
-		return newNode;
+				char[] label = children.labelAt(slot);
+				int matched = matchLabel(label, s, i + 1);
+				if (matched == label.length) {
+					cur = children.childAt(slot);
+					i += 1 + matched;
+					if (_tier != null && ++depth == TrieTier.UNIT_DEPTH)
+						_tier.touchForChange(cur);
+					continue;
+				}
+
+				// the word ends inside this edge or leaves it part way, split the edge there
+				synchronized (cur) {
+					if (cur._removed)
+						continue retry;
+					if (cur.children != children)
+						continue;
+					lsn[0] = Math.max(lsn[0], splitEdge(cur, ch, label, matched, children.childAt(slot), s, i + 1 + matched));
+				}
+				return true;
+			}
+
+			boolean added;
+			synchronized (cur) {
+				if (cur._removed)
+					continue retry;
+				added = !cur.aword;
+				cur.aword = true;
+				cur._weight = added ? 1 : (int)Math.min(Integer.MAX_VALUE, Math.max(cur._weight, 1) + 1L);
+				if (added)
+					countWord(s, 1);
+				if (added && _nodeStore != null)
+					_nodeStore.setWord(cur._slot, true);
+				if (added)
+					lsn[0] = Math.max(lsn[0], log(TrieLog.INSERT, s));
+			}
+			return added;
+		}
 	}
 
-	private void removeNodeFromFs(TrieNode thisNode){
-		if(thisNode == null)
-			return;
+	// number of leading label characters that match s from index start on
+	private static int matchLabel(char[] label, String s, int start){
+		int matched = 0;
+		while(matched < label.length && start + matched < s.length() && label[matched] == s.charAt(start + matched))
+			++matched;
+		return matched;
+	}
 
-		try{
-			File nodeFile = new File(getNodeFilename(thisNode));
-			if(!nodeFile.exists())
-				return;
+	// Called holding cur's monitor. Builds the nodes for s[start..] off to the side and publishes them with one
+	// table swap on cur: a single labelled leaf in radix mode, a chain of one node per character otherwise.
+	private long appendSuffix(TrieNode cur, String s, int start){
+		if(_radix){
+			char[] label = s.substring(start + 1).toCharArray();
+			TrieNode leaf = createNewNode(cur, s.charAt(start), label, true);
+			return publish(cur, s.charAt(start), label, leaf, leaf, s, false);
+		}
 
-			nodeFile.delete();
-		}catch (Exception e){
-			System.err.println(e);
+		TrieNode first = createNewNode(cur, s.charAt(start), null, start + 1 == s.length());
+		TrieNode last = first;
+		for(int i = start + 1; i < s.length(); ++i){
+			TrieNode next = createNewNode(last, s.charAt(i), null, i + 1 == s.length());
+			last.children = last.children.with(s.charAt(i), next);
+			last = next;
 		}
+		return publish(cur, s.charAt(start), null, first, last, s, false);
 	}
 
-	private String getNodeFilename(TrieNode thisNode){
-		if(thisNode == null)
-			return "";
-
-		return "Trie_" + _name + "_Node_" + thisNode._id + ".ser";
+	// Called holding cur's monitor. Publishes child under cur, counts s and logs its insert while also holding the node
+	// s ends at, so a remove of s (which locks that node) can only be counted and logged after this insert.
+	private long publish(TrieNode cur, char ch, char[] label, TrieNode child, TrieNode wordNode, String s, boolean countLockHeld){
+		synchronized (wordNode){
+			cur.addChild(ch, label, child);
+			if(countLockHeld)
+				countPath(s, 1);
+			else
+				countWord(s, 1);
+			return log(TrieLog.INSERT, s);
+		}
 	}
 
-	private void writeNodeToFS(TrieNode outNode){
-		if(outNode == null)
-			return;
+	// Called holding cur's monitor. The edge ch + label leading to child is cut after 'matched' label characters;
+	// the new middle node either ends the word (rest == s.length()) or gets a leaf for the rest of s.
+	private long splitEdge(TrieNode cur, char ch, char[] label, int matched, TrieNode child, String s, int rest){
+		char[] middleLabel = Arrays.copyOf(label, matched), childLabel = Arrays.copyOfRange(label, matched + 1, label.length);
+		TrieNode middle = createNewNode(cur, ch, middleLabel, rest == s.length());
+		ChildTable<TrieNode> middleChildren = ChildTable.<TrieNode>empty().with(label[matched], childLabel, child);
+		if(_nodeStore != null)
+			_nodeStore.relink(child._slot, middle._slot, label[matched], childLabel);
+
+		TrieNode wordNode = middle;
+		if(rest < s.length()) {
+			char[] leafLabel = s.substring(rest + 1).toCharArray();
+			wordNode = createNewNode(middle, s.charAt(rest), leafLabel, true);
+			middleChildren = middleChildren.with(s.charAt(rest), leafLabel, wordNode);
+		}
+		middle.children = middleChildren;
+		// the middle node starts out with child's word count (s is counted once it is in) and completions; a count
+		// walk or completions update running meanwhile would go past it and miss it
+		long stamp = _countLock.writeLock();
 		try{
-			FileOutputStream fileOutStream = new FileOutputStream(getNodeFilename(outNode));
-			ObjectOutputStream objectOutStream = new ObjectOutputStream(fileOutStream);
-			objectOutStream.writeObject(outNode);
-			objectOutStream.close();
+			middle._subtreeWords = child._subtreeWords;
+			if(_completions != null){
+				synchronized (_completions){
+					middle._completions = child._completions;
+					return publish(cur, ch, middleLabel, middle, wordNode, s, true);
+				}
+			}
+			return publish(cur, ch, middleLabel, middle, wordNode, s, true);
+		}finally{
+			_countLock.unlockWrite(stamp);
 		}
-		catch(Exception e){
-			System.err.println(e);
+	}
+
+	// a node that will hang off parent over the edge key + label; its record is written before it is published
+	private TrieNode createNewNode(TrieNode parent, char key, char[] label, boolean aword){
+		TrieNode newNode = new TrieNode(_highestNodeId.getAndIncrement());
+		newNode.aword = aword;
+		if(_tier != null)
+			_tier.addResidentNodes(1);
+
+		if(_nodeStore != null){
+			newNode._slot = _nodeStore.allocate();
+			_nodeStore.create(newNode._slot, newNode._id, parent._slot, key, label, aword);
 		}
+
+		return newNode;
 	}
 
     @Override
 	public String toString() {
-        StringBuilder stringBuilder = new StringBuilder();
-		toString(root, "", stringBuilder);
-        return stringBuilder.toString();
+		StringBuilder stringBuilder = new StringBuilder();
+		for(Iterator<String> words = words("", null); words.hasNext(); )
+			stringBuilder.append(words.next()).append(System.lineSeparator());
+		return stringBuilder.toString();
+	}
+
+	// The k heaviest words starting with prefix, heaviest first and ties in word order. A word weighs as often as it
+	// was inserted (or the score set with setWeight); words of the frozen base weigh 1. With completions on and k
+	// within the cached lists this is one walk down to prefix, otherwise the subtree is searched.
+	public List<String> complete(String prefix, int k) {
+		if(prefix == null || k < 0)
+			throw new IllegalArgumentException();
+		List<String> words = new ArrayList<>();
+		for(TrieCompletions.Completion completion : ranked(prefix, k))
+			words.add(completion.word);
+		return words;
+	}
+
+	// complete's words with their weights, at most k of them in rank order
+	List<TrieCompletions.Completion> ranked(String prefix, int k) {
+		List<TrieCompletions.Completion> ranked = new ArrayList<>();
+		TrieCompletions completions = _completions;
+		if(completions != null && k <= TrieCompletions.CACHE_SIZE){
+			TrieCompletions.Completion[] cached = completions.lookup(prefix);
+			ranked.addAll(Arrays.asList(cached).subList(0, Math.min(k, cached.length)));
+		}
+		else if(k > 0){
+			// keep the k heaviest seen so far, the lightest on top
+			PriorityQueue<TrieCompletions.Completion> heaviest = new PriorityQueue<>(k, Collections.reverseOrder(TrieCompletions.RANK));
+			for(WordIterator words = new WordIterator(prefix, null); words.hasNext(); ){
+				int weight = Math.max(words._nextNode._weight, 1);
+				heaviest.add(new TrieCompletions.Completion(words.next(), weight));
+				if(heaviest.size() > k)
+					heaviest.poll();
+			}
+			ranked.addAll(heaviest);
+		}
+		if(_frozenBase != null){
+			// all weigh 1, so the first k in word order are the heaviest of the base
+			Iterator<String> baseWords = _frozenBase.words(prefix, null);
+			for(int count = 0; count < k && baseWords.hasNext(); ++count)
+				ranked.add(new TrieCompletions.Completion(baseWords.next(), 1));
+		}
+		Collections.sort(ranked, TrieCompletions.RANK);
+		return (ranked.size() > k) ? ranked.subList(0, k) : ranked;
 	}
 
-	private void toString(TrieNode node, String word, StringBuilder stringBuilder) {
-		if (node.aword) {
-			stringBuilder.append(word + System.lineSeparator());
+	// Sets the weight complete ranks word by; false if word is not in the trie's delta (base words always weigh 1).
+	// Weights live on the heap only: a word read back from disk weighs 1 again.
+	public boolean setWeight(String word, int weight) {
+		if(word == null || weight < 1)
+			throw new IllegalArgumentException();
+		TrieNode node = root;
+		for(int i = 0; i < word.length(); ){
+			ChildTable<TrieNode> children = node.children();
+			int slot = children.slotOf(word.charAt(i));
+			if(slot < 0)
+				return false;
+			char[] label = children.labelAt(slot);
+			if(matchLabel(label, word, i + 1) != label.length)
+				return false;
+			node = children.childAt(slot);
+			i += 1 + label.length;
 		}
-		for (Character ch : node.children.keySet()) {
-			toString(node.children.get(ch), word + ch, stringBuilder);
+		synchronized (node){
+			if(node._removed || !node.aword)
+				return false;
+			node._weight = weight;
 		}
+		if(_completions != null)
+			_completions.update(word);
+		return true;
 	}
-	
-	public boolean query(String s) {
-		return query(root, s);
+
+	// At most limit words within maxEdits insertions, deletions or substitutions of word, the frozen base's included,
+	// closest first and then in word order. The walk carries one row of the edit distance table per node and leaves
+	// a subtree as soon as every entry of its row is over maxEdits, so it only visits the part of the trie near word.
+	public List<String> fuzzy(String word, int maxEdits, int limit) {
+		if(word == null || maxEdits < 0 || limit < 0)
+			throw new IllegalArgumentException();
+		List<List<String>> byDistance = new ArrayList<>();
+		for(int distance = 0; distance <= maxEdits; ++distance)
+			byDistance.add(new ArrayList<String>());
+		collectFuzzy(word, maxEdits, byDistance);
+		if(_frozenBase != null)
+			_frozenBase.fuzzy(word, maxEdits, byDistance);
+
+		List<String> matches = new ArrayList<>();
+		for(List<String> words : byDistance){
+			if(_frozenBase != null)
+				Collections.sort(words); // each walk is in word order, the two together are not
+			for(int k = 0; k < words.size() && matches.size() < limit; ++k)
+				matches.add(words.get(k));
+		}
+		return matches;
 	}
-	
-	private boolean query(TrieNode node, String s) {
-		if(s != null) {
-			String rest = s.substring(1);              //rest is a substring of s, by excluding the first character in s
-			char ch = s.charAt(0);                     //ch is the first letter of s
-			TrieNode child = node.children.get(ch);	   //return the child that ch associated with. 
-			if(s.length() == 1 && child != null)       //if s contains only one letter, and current node has a child associated with that letter, we find the prefix in Trie!
-				return true;	                       //base case
-			if(child == null)
-				return false;
+
+	// the first row of the edit distance table for word: turning the empty string into word[0..j) takes j edits
+	static int[] firstEditRow(String word) {
+		int[] row = new int[word.length() + 1];
+		for(int j = 0; j < row.length; ++j)
+			row[j] = j;
+		return row;
+	}
+
+	// Fills row with the row after appending ch to the path whose row is previous (row[j] is the distance to
+	// word[0..j)) and returns its smallest entry: over maxEdits, no path through here can end close enough to word.
+	static int nextEditRow(int[] previous, int[] row, String word, char ch) {
+		row[0] = previous[0] + 1;
+		int minimum = row[0];
+		for(int j = 1; j < row.length; ++j){
+			int substitute = previous[j - 1] + (word.charAt(j - 1) == ch ? 0 : 1);
+			row[j] = Math.min(substitute, Math.min(previous[j], row[j - 1]) + 1);
+			minimum = Math.min(minimum, row[j]);
+		}
+		return minimum;
+	}
+
+	// Adds the delta's words within maxEdits of word to byDistance, by distance; iterative like WordIterator. Every
+	// level of the stack keeps its row in rows[level], reused from one sibling to the next.
+	void collectFuzzy(String word, int maxEdits, List<List<String>> byDistance) {
+		List<ChildTable<TrieNode>> tables = new ArrayList<>();
+		int[][] rows = new int[16][];
+		int[] nextSlots = new int[16], pathLengths = new int[16];
+		int[] spare = new int[word.length() + 1];
+		StringBuilder path = new StringBuilder();
+		rows[0] = firstEditRow(word);
+		if(root.aword && rows[0][word.length()] <= maxEdits)
+			byDistance.get(rows[0][word.length()]).add("");
+		tables.add(root.children());
+		while(!tables.isEmpty()){
+			int top = tables.size() - 1;
+			ChildTable<TrieNode> children = tables.get(top);
+			int slot = nextSlots[top];
+			while(slot < children.slotCount() && children.childAt(slot) == null)
+				++slot;
+			if(slot == children.slotCount()){
+				tables.remove(top);
+				continue;
+			}
+			nextSlots[top] = slot + 1;
+
+			if(top + 1 == rows.length){
+				rows = Arrays.copyOf(rows, rows.length * 2);
+				nextSlots = Arrays.copyOf(nextSlots, nextSlots.length * 2);
+				pathLengths = Arrays.copyOf(pathLengths, pathLengths.length * 2);
+			}
+			if(rows[top + 1] == null)
+				rows[top + 1] = new int[word.length() + 1];
+			int[] row = rows[top + 1];
+			int minimum = nextEditRow(rows[top], row, word, children.keyAt(slot));
+			char[] label = children.labelAt(slot);
+			for(int i = 0; i < label.length && minimum <= maxEdits; ++i){
+				minimum = nextEditRow(row, spare, word, label[i]);
+				int[] previous = row;
+				row = spare;
+				spare = previous;
+			}
+			rows[top + 1] = row;
+			if(minimum > maxEdits)
+				continue;
+			path.setLength(pathLengths[top]);
+			path.append(children.keyAt(slot)).append(label);
+			TrieNode child = children.childAt(slot);
+			if(child.aword && row[word.length()] <= maxEdits)
+				byDistance.get(row[word.length()]).add(path.toString());
+
+			tables.add(child.children());
+			nextSlots[top + 1] = 0;
+			pathLengths[top + 1] = path.length();
+		}
+	}
+
+	// The words starting with prefix that sort after 'after' (null to start from the first one), in sorted order and
+	// with the frozen base's merged in. Nothing is collected up front, so a caller can page through any number of
+	// words in bounded memory, resuming from the last word it got.
+	public Iterator<String> words(String prefix, String after) {
+		if(prefix == null)
+			throw new IllegalArgumentException();
+		if(after != null && !after.startsWith(prefix)){
+			// every word under prefix sorts on the same side of after
+			if(after.compareTo(prefix) > 0)
+				return Collections.<String>emptyIterator();
+			after = null;
+		}
+		Iterator<String> deltaWords = new WordIterator(prefix, after);
+		if(_frozenBase == null)
+			return deltaWords;
+		return new MergedWords(deltaWords, _frozenBase.words(prefix, after));
+	}
+
+	// Depth first over the published child tables with an explicit stack (a plain trie is as deep as its longest
+	// word). Each level remembers the table it is going through, the next slot in it and the length of the path
+	// to the table's node.
+	private class WordIterator implements Iterator<String> {
+		private List<ChildTable<TrieNode>> _tables = new ArrayList<>();
+		private int[] _nextSlots = new int[16], _pathLengths = new int[16];
+		private StringBuilder _path = new StringBuilder();
+		private String _next;
+		private TrieNode _nextNode;
+
+		WordIterator(String prefix, String after) {
+			// the node for prefix; in radix mode prefix may end part way along its edge
+			TrieNode node = root;
+			while(_path.length() < prefix.length()){
+				ChildTable<TrieNode> children = node.children();
+				int i = _path.length();
+				int slot = children.slotOf(prefix.charAt(i));
+				if(slot < 0)
+					return;
+				char[] label = children.labelAt(slot);
+				int matched = matchLabel(label, prefix, i + 1);
+				if(matched < label.length && i + 1 + matched < prefix.length())
+					return;
+				_path.append(prefix.charAt(i)).append(label);
+				node = children.childAt(slot);
+			}
+
+			if(after == null || after.compareTo(_path.toString()) < 0){
+				push(node.children());
+				if(node.aword){
+					_next = _path.toString();
+					_nextNode = node;
+				}
+				else
+					advance();
+				return;
+			}
+			if(!after.startsWith(_path.toString()))
+				return; // after the whole subtree
+			seek(node, after);
+			advance();
+		}
+
+		// positions the stack just past after, which lies on or under node
+		private void seek(TrieNode node, String after) {
+			while(true){
+				ChildTable<TrieNode> children = node.children();
+				push(children);
+				int from = _path.length(), top = _tables.size() - 1;
+				if(from == after.length())
+					return; // node is after itself, everything below it comes later
+				char ch = after.charAt(from);
+				int slot = 0;
+				while(slot < children.slotCount() && (children.childAt(slot) == null || children.keyAt(slot) < ch))
+					++slot;
+				if(slot == children.slotCount() || children.keyAt(slot) > ch){
+					_nextSlots[top] = slot;
+					return;
+				}
+				char[] label = children.labelAt(slot);
+				int matched = matchLabel(label, after, from + 1);
+				if(matched < label.length){
+					// after ends along the edge or leaves it: the child's subtree is entirely before or after it
+					boolean childAfter = from + 1 + matched == after.length() || label[matched] > after.charAt(from + 1 + matched);
+					_nextSlots[top] = childAfter ? slot : slot + 1;
+					return;
+				}
+				_nextSlots[top] = slot + 1;
+				_path.append(ch).append(label);
+				node = children.childAt(slot);
+			}
+		}
+
+		private void push(ChildTable<TrieNode> children) {
+			int level = _tables.size();
+			if(level == _nextSlots.length){
+				_nextSlots = Arrays.copyOf(_nextSlots, level * 2);
+				_pathLengths = Arrays.copyOf(_pathLengths, level * 2);
+			}
+			_tables.add(children);
+			_nextSlots[level] = 0;
+			_pathLengths[level] = _path.length();
+		}
+
+		private void advance() {
+			_next = null;
+			while(!_tables.isEmpty()){
+				int top = _tables.size() - 1;
+				ChildTable<TrieNode> children = _tables.get(top);
+				int slot = _nextSlots[top];
+				while(slot < children.slotCount() && children.childAt(slot) == null)
+					++slot;
+				if(slot == children.slotCount()){
+					_tables.remove(top);
+					continue;
+				}
+				_nextSlots[top] = slot + 1;
+				_path.setLength(_pathLengths[top]);
+				_path.append(children.keyAt(slot)).append(children.labelAt(slot));
+				TrieNode child = children.childAt(slot);
+				push(child.children());
+				if(child.aword){
+					_next = _path.toString();
+					_nextNode = child;
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {return _next != null;}
+
+		@Override
+		public String next() {
+			if(_next == null)
+				throw new NoSuchElementException();
+			String word = _next;
+			advance();
+			return word;
+		}
+	}
+
+	// The words pattern matches, in sorted order and with the frozen base's merged in. Found as they are asked for,
+	// so a caller that stops early also stops the walk.
+	public Iterator<String> matches(GlobPattern pattern) {
+		if(pattern == null)
+			throw new IllegalArgumentException();
+		Iterator<String> deltaWords = new MatchIterator(pattern);
+		if(_frozenBase == null)
+			return deltaWords;
+		return new MergedWords(deltaWords, _frozenBase.matches(pattern));
+	}
+
+	// Like WordIterator, with the pattern's states after the path to each level's node. A child is only entered
+	// while some state survives its edge, and where the pattern allows a single character that child is looked up
+	// rather than trying every slot.
+	private class MatchIterator implements Iterator<String> {
+		private GlobPattern _pattern;
+		private List<ChildTable<TrieNode>> _tables = new ArrayList<>();
+		private long[] _states = new long[16];
+		private int[] _nextSlots = new int[16], _pathLengths = new int[16];
+		private StringBuilder _path = new StringBuilder();
+		private String _next;
+
+		MatchIterator(GlobPattern pattern) {
+			_pattern = pattern;
+			long states = pattern.start();
+			push(root.children(), states);
+			if(root.aword && pattern.accepts(states))
+				_next = "";
 			else
-				return query(child, rest);      //recursive, In this way, we follow the path of the trie from _root down towards leaf
+				advance();
+		}
+
+		private void push(ChildTable<TrieNode> children, long states) {
+			int level = _tables.size();
+			if(level == _nextSlots.length){
+				_nextSlots = Arrays.copyOf(_nextSlots, level * 2);
+				_pathLengths = Arrays.copyOf(_pathLengths, level * 2);
+				_states = Arrays.copyOf(_states, level * 2);
+			}
+			_tables.add(children);
+			_pathLengths[level] = _path.length();
+			_states[level] = states;
+			int only = _pattern.onlyNext(states);
+			if(only < 0)
+				_nextSlots[level] = 0;
+			else{
+				int slot = children.slotOf((char) only);
+				_nextSlots[level] = (slot < 0) ? children.slotCount() : slot;
+			}
+		}
+
+		private void advance() {
+			_next = null;
+			while(!_tables.isEmpty()){
+				int top = _tables.size() - 1;
+				ChildTable<TrieNode> children = _tables.get(top);
+				int slot = _nextSlots[top];
+				while(slot < children.slotCount() && children.childAt(slot) == null)
+					++slot;
+				if(slot == children.slotCount()){
+					_tables.remove(top);
+					continue;
+				}
+				// a looked up child is the level's only one
+				_nextSlots[top] = (_pattern.onlyNext(_states[top]) < 0) ? slot + 1 : children.slotCount();
+
+				long states = _pattern.step(_states[top], children.keyAt(slot));
+				char[] label = children.labelAt(slot);
+				for(int i = 0; i < label.length && states != 0; ++i)
+					states = _pattern.step(states, label[i]);
+				if(states == 0)
+					continue;
+				_path.setLength(_pathLengths[top]);
+				_path.append(children.keyAt(slot)).append(label);
+				TrieNode child = children.childAt(slot);
+				push(child.children(), states);
+				if(child.aword && _pattern.accepts(states)){
+					_next = _path.toString();
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {return _next != null;}
+
+		@Override
+		public String next() {
+			if(_next == null)
+				throw new NoSuchElementException();
+			String word = _next;
+			advance();
+			return word;
+		}
+	}
+
+	// two sorted word iterators that never share a word, merged (the delta and the frozen base)
+	private static class MergedWords implements Iterator<String> {
+		private Iterator<String> _first, _second;
+		private String _nextFirst, _nextSecond;
+
+		MergedWords(Iterator<String> first, Iterator<String> second) {
+			_first = first;
+			_second = second;
+			_nextFirst = first.hasNext() ? first.next() : null;
+			_nextSecond = second.hasNext() ? second.next() : null;
+		}
+
+		@Override
+		public boolean hasNext() {return _nextFirst != null || _nextSecond != null;}
+
+		@Override
+		public String next() {
+			String word;
+			if(_nextSecond == null || (_nextFirst != null && _nextFirst.compareTo(_nextSecond) < 0)){
+				if(_nextFirst == null)
+					throw new NoSuchElementException();
+				word = _nextFirst;
+				_nextFirst = _first.hasNext() ? _first.next() : null;
+			}
+			else{
+				word = _nextSecond;
+				_nextSecond = _second.hasNext() ? _second.next() : null;
+			}
+			return word;
 		}
-		return false;
+	}
+
+	// true if s is a prefix of some stored word; takes any CharSequence so a caller can query straight from a reused
+	// buffer without making a String
+	public boolean query(CharSequence s) {
+		if(s == null || s.length() == 0)
+			return false;
+		if(_frozenBase != null && _frozenBase.query(s))
+			return true;
+		BloomFilter bloom = _bloom;
+		if(bloom == null)
+			return walk(s);
+		if(!bloom.mightContainPrefix(s))
+			return false;
+		boolean found = walk(s);
+		bloom.countLookup(found);
+		return found;
+	}
+
+	// whether s leads to a node of the delta
+	private boolean walk(CharSequence s) {
+		TrieNode node = root;
+		int i = 0, depth = 0;
+		while(i < s.length()){
+			ChildTable<TrieNode> children = node.children();
+			int slot = children.slotOf(s.charAt(i++));
+			if(slot < 0)
+				return false;
+			char[] label = children.labelAt(slot);
+			for(int j = 0; j < label.length && i < s.length(); ++j, ++i)
+				if(label[j] != s.charAt(i))
+					return false;
+			node = children.childAt(slot);
+			if(_tier != null && ++depth == TrieTier.UNIT_DEPTH)
+				_tier.touch(node);
+		}
+		return true;
 	}
 
 	public static void main(String[] args){
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Ranked completions for a Trie (-complete). Every node caches the CACHE_SIZE highest weighted words of its subtree,
+// heaviest first and ties in word order, so the top k under a prefix is the first k of one node's list. A word's
+// weight is how often it was inserted, or the score last set for it.
+//
+// Readers never lock. Lists are immutable and replaced whole; all replacing is serialized on this object's monitor,
+// which is only ever taken last (an edge split takes it inside the node monitors it holds), so updates never hold a
+// node monitor. An update rereads the word's current state rather than applying a delta, so updates for the same
+// word may run in any order. Going up the word's path, a heavier word is merged into each list, and a list that
+// loses the word or sees it get lighter is recomputed from the children's lists, which are already up to date.
+public class TrieCompletions {
+    static final int CACHE_SIZE = 16;
+
+    static final Completion[] NONE = new Completion[0];
+
+    static final Comparator<Completion> RANK = new Comparator<Completion>(){
+        @Override
+        public int compare(Completion first, Completion second){
+            if(first.weight != second.weight)
+                return (first.weight > second.weight) ? -1 : 1;
+            return first.word.compareTo(second.word);
+        }
+    };
+
+    static final class Completion {
+        final String word;
+        final int weight;
+
+        Completion(String word, int weight){
+            this.word = word;
+            this.weight = weight;
+        }
+    }
+
+    private Trie _trie;
+
+    TrieCompletions(Trie trie){
+        if(trie == null)
+            throw new IllegalArgumentException();
+        _trie = trie;
+    }
+
+    // a word node read as weight 1 until it is inserted again or scored (nodes restored from disk start at 0)
+    static int weightOf(Trie.TrieNode node){
+        return node.aword ? Math.max(node._weight, 1) : 0;
+    }
+
+    static Completion[] listOf(Trie.TrieNode node){
+        Completion[] list = node._completions;
+        return (list == null) ? NONE : list;
+    }
+
+    // the cached list of the node under prefix (in radix mode prefix may end part way along its edge)
+    Completion[] lookup(String prefix){
+        Trie.TrieNode node = _trie.root();
+        int i = 0;
+        while(i < prefix.length()){
+            ChildTable<Trie.TrieNode> children = node.children();
+            int slot = children.slotOf(prefix.charAt(i++));
+            if(slot < 0)
+                return NONE;
+            char[] label = children.labelAt(slot);
+            for(int j = 0; j < label.length && i < prefix.length(); ++j, ++i)
+                if(label[j] != prefix.charAt(i))
+                    return NONE;
+            node = children.childAt(slot);
+        }
+        return listOf(node);
+    }
+
+    // Brings the lists on word's path in line with the word's current state, after an insert, remove or new score
+    void update(String word){
+        synchronized(this){
+            Trie.TrieNode[] path = new Trie.TrieNode[word.length() + 1];
+            int[] pathLengths = new int[word.length() + 1];
+            path[0] = _trie.root();
+            int depth = 0, i = 0;
+            while(i < word.length()){
+                ChildTable<Trie.TrieNode> children = path[depth].children();
+                int slot = children.slotOf(word.charAt(i));
+                if(slot < 0)
+                    break;
+                char[] label = children.labelAt(slot);
+                int matched = 0;
+                while(matched < label.length && i + 1 + matched < word.length() && label[matched] == word.charAt(i + 1 + matched))
+                    ++matched;
+                if(matched < label.length)
+                    break;
+                i += 1 + label.length;
+                path[++depth] = children.childAt(slot);
+                pathLengths[depth] = i;
+            }
+            int weight = (i == word.length()) ? weightOf(path[depth]) : 0;
+
+            for(int k = depth; k >= 0; --k){
+                Trie.TrieNode node = path[k];
+                Completion[] list = listOf(node);
+                int index = indexOf(list, word);
+                Completion[] updated;
+                if(weight > 0 && (index < 0 || weight >= list[index].weight))
+                    updated = (index >= 0 && weight == list[index].weight) ? list : with(list, index, new Completion(word, weight));
+                else if(index >= 0)
+                    updated = recompute(node, word.substring(0, pathLengths[k]));
+                else
+                    updated = list;
+                if(updated == list)
+                    break; // the lists above are built from this one, they need no change either
+                node._completions = updated;
+            }
+        }
+    }
+
+    // Builds every list bottom up, for a trie that was filled before completions were turned on. Nothing may change
+    // the trie meanwhile.
+    void rebuild(){
+        synchronized(this){
+            List<Trie.TrieNode> nodes = new ArrayList<>();
+            List<ChildTable<Trie.TrieNode>> tables = new ArrayList<>();
+            int[] nextSlots = new int[16], pathLengths = new int[16];
+            StringBuilder path = new StringBuilder();
+            nodes.add(_trie.root());
+            tables.add(_trie.root().children());
+            while(!nodes.isEmpty()){
+                int top = nodes.size() - 1;
+                ChildTable<Trie.TrieNode> children = tables.get(top);
+                int slot = nextSlots[top];
+                while(slot < children.slotCount() && children.childAt(slot) == null)
+                    ++slot;
+                path.setLength(pathLengths[top]);
+                if(slot == children.slotCount()){
+                    // all children are done
+                    Trie.TrieNode node = nodes.remove(top);
+                    tables.remove(top);
+                    node._completions = recompute(node, path.toString());
+                    continue;
+                }
+                nextSlots[top] = slot + 1;
+                if(top + 1 == nextSlots.length){
+                    nextSlots = Arrays.copyOf(nextSlots, nextSlots.length * 2);
+                    pathLengths = Arrays.copyOf(pathLengths, pathLengths.length * 2);
+                }
+                path.append(children.keyAt(slot)).append(children.labelAt(slot));
+                nodes.add(children.childAt(slot));
+                tables.add(children.childAt(slot).children());
+                nextSlots[top + 1] = 0;
+                pathLengths[top + 1] = path.length();
+            }
+        }
+    }
+
+    // Recomputes the root's list after whole subtrees were attached under it (see Trie.attachLoadedSubtrees), whose
+    // lists were built with them; called holding the root's monitor
+    void refreshRoot(){
+        synchronized(this){
+            Trie.TrieNode root = _trie.root();
+            root._completions = recompute(root, "");
+        }
+    }
+
+    // the node's own word (spelled nodeWord) merged with its children's lists
+    static Completion[] recompute(Trie.TrieNode node, String nodeWord){
+        List<Completion> candidates = new ArrayList<>();
+        int weight = weightOf(node);
+        if(weight > 0){
+            Completion[] old = listOf(node);
+            int index = indexOf(old, nodeWord);
+            candidates.add((index >= 0 && old[index].weight == weight) ? old[index] : new Completion(nodeWord, weight));
+        }
+        ChildTable<Trie.TrieNode> children = node.children();
+        for(int slot = 0; slot < children.slotCount(); ++slot)
+            if(children.childAt(slot) != null)
+                candidates.addAll(Arrays.asList(listOf(children.childAt(slot))));
+        if(candidates.isEmpty())
+            return null;
+        Completion[] list = candidates.toArray(new Completion[candidates.size()]);
+        Arrays.sort(list, RANK);
+        return (list.length > CACHE_SIZE) ? Arrays.copyOf(list, CACHE_SIZE) : list;
+    }
+
+    private static int indexOf(Completion[] list, String word){
+        for(int k = 0; k < list.length; ++k)
+            if(list[k].word.equals(word))
+                return k;
+        return -1;
+    }
+
+    // list without its entry at index (if any) and with completion in rank order, or list itself if it does not make it
+    private static Completion[] with(Completion[] list, int index, Completion completion){
+        int size = (index >= 0) ? list.length - 1 : list.length;
+        int position = 0;
+        while(position < list.length && (position == index || RANK.compare(list[position], completion) < 0))
+            ++position;
+        int insertAt = (index >= 0 && index < position) ? position - 1 : position;
+        if(insertAt >= CACHE_SIZE)
+            return list;
+        Completion[] updated = new Completion[Math.min(size + 1, CACHE_SIZE)];
+        int to = 0;
+        for(int from = 0; from < list.length && to < updated.length; ++from){
+            if(from == index)
+                continue;
+            if(to == insertAt)
+                updated[to++] = completion;
+            if(to < updated.length)
+                updated[to++] = list[from];
+        }
+        if(to == insertAt)
+            updated[to] = completion;
+        return updated;
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only log of the inserts and removes applied to a Trie (-wal). Writers copy their record into a shared
+// buffer and get back its log sequence number (the log offset just past the record); a single flusher thread
+// writes whatever has piled up since its last round and forces it with one fsync, so concurrent writers share
+// the cost (group commit). awaitDurable(lsn) blocks until the record is on disk, unless the log is relaxed, in
+// which case replies go out right away and the flusher catches up on its own.
+//
+// The log is a series of segment files <baseName>.<start lsn>; rotate() starts a new one so that a snapshot
+// taken afterwards makes every older segment unnecessary.
+// Record: int payload length, int crc32 of the payload, payload = op byte + UTF-8 word
+public class TrieLog {
+    public static final byte INSERT = 1, REMOVE = 2;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private String _baseName;
+    private boolean _relaxed;
+
+    private final Object _appendLock = new Object();
+    // guarded by _appendLock
+    private byte[] _pending = new byte[INITIAL_BUFFER_SIZE];
+    private int _pendingLength;
+    private long _appendedLsn;
+    private long _rotateAt = -1;
+    private boolean _closed;
+
+    private final Object _durableLock = new Object();
+    private volatile long _durableLsn;
+    private volatile IOException _failure;
+
+    // only touched by the flusher
+    private RandomAccessFile _segmentFile;
+    private long _segmentStart;
+    private byte[] _spare = new byte[INITIAL_BUFFER_SIZE];
+    private Thread _flusher;
+
+    // continues a log whose existing segments end at endLsn (see replay)
+    public TrieLog(String baseName, long endLsn, boolean relaxed) throws IOException{
+        if(baseName == null || endLsn < 0)
+            throw new IllegalArgumentException();
+        _baseName = baseName;
+        _relaxed = relaxed;
+        _appendedLsn = endLsn;
+        _durableLsn = endLsn;
+        openSegment(endLsn);
+
+        _flusher = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                flushLoop();
+            }
+        });
+        _flusher.setDaemon(true);
+        _flusher.setName("TrieLog-flusher");
+        _flusher.start();
+    }
+
+    public boolean isRelaxed(){return _relaxed;}
+
+    public long durableLsn(){return _durableLsn;}
+
+    public long appendedLsn(){
+        synchronized(_appendLock){
+            return _appendedLsn;
+        }
+    }
+
+    // Adds a record and returns its lsn. Callers append while still holding the lock that ordered their change,
+    // so two changes to the same word reach the log in the order they were made.
+    public long append(byte op, String word){
+        byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(wordBytes, 0, wordBytes.length);
+        int recordLength = RECORD_HEADER_SIZE + 1 + wordBytes.length;
+
+        synchronized(_appendLock){
+            if(_closed)
+                throw new IllegalStateException("Log is closed");
+            if(_pendingLength + recordLength > _pending.length)
+                _pending = Arrays.copyOf(_pending, Math.max(_pending.length * 2, _pendingLength + recordLength));
+            ByteBuffer record = ByteBuffer.wrap(_pending, _pendingLength, recordLength);
+            record.putInt(1 + wordBytes.length).putInt((int)crc.getValue()).put(op).put(wordBytes);
+            if(_pendingLength == 0)
+                _appendLock.notify(); // the flusher only waits while the buffer is empty
+            _pendingLength += recordLength;
+            _appendedLsn += recordLength;
+            return _appendedLsn;
+        }
+    }
+
+    // Throws once a write has failed: the records after it will never be durable, so changes are refused from then on
+    public void checkWritable(){
+        if(_failure != null)
+            throw new IllegalStateException("Log write failed: " + _failure);
+    }
+
+    public void awaitDurable(long lsn){
+        if(!_relaxed)
+            awaitFlushed(lsn);
+    }
+
+    // same, but waits even when the log is relaxed
+    public void awaitFlushed(long lsn){
+        if(_durableLsn >= lsn)
+            return;
+        synchronized(_durableLock){
+            while(_durableLsn < lsn){
+                checkWritable();
+                try{
+                    _durableLock.wait();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for the log");
+                }
+            }
+        }
+    }
+
+    // Starts a new segment at the current end of the log and returns that lsn. Everything logged before it lives in
+    // older segments, which can be deleted once a snapshot that covers them is safely written.
+    public long rotate(){
+        synchronized(_appendLock){
+            _rotateAt = _appendedLsn;
+            _appendLock.notify();
+            return _rotateAt;
+        }
+    }
+
+    // deletes the segments that only hold records before lsn (which must be the result of a rotate)
+    public void truncateBefore(long lsn){
+        for(long segmentStart : listSegments(_baseName))
+            if(segmentStart < lsn)
+                new File(segmentName(_baseName, segmentStart)).delete();
+    }
+
+    private void flushLoop(){
+        while(true){
+            byte[] batch;
+            int batchLength;
+            long batchEnd, rotateAt;
+            synchronized(_appendLock){
+                while(_pendingLength == 0 && _rotateAt < 0 && !_closed){
+                    try{
+                        _appendLock.wait();
+                    }catch(InterruptedException e){}
+                }
+                if(_pendingLength == 0 && _rotateAt < 0 && _closed)
+                    return;
+                batch = _pending;
+                batchLength = _pendingLength;
+                batchEnd = _appendedLsn;
+                rotateAt = _rotateAt;
+                _pending = _spare;
+                _pendingLength = 0;
+                _rotateAt = -1;
+            }
+
+            try{
+                // a rotation splits the batch: what came before it still goes to the old segment
+                int beforeRotation = (rotateAt < 0) ? batchLength : (int)(rotateAt - (batchEnd - batchLength));
+                write(batch, 0, beforeRotation);
+                if(rotateAt >= 0 && rotateAt != _segmentStart){
+                    _segmentFile.close();
+                    openSegment(rotateAt);
+                }
+                write(batch, beforeRotation, batchLength - beforeRotation);
+            }catch(IOException e){
+                System.err.println(e);
+                _failure = e;
+            }
+            _spare = batch;
+
+            synchronized(_durableLock){
+                if(_failure == null)
+                    _durableLsn = batchEnd;
+                _durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void write(byte[] batch, int offset, int length) throws IOException{
+        if(length == 0)
+            return;
+        _segmentFile.write(batch, offset, length);
+        _segmentFile.getChannel().force(false);
+    }
+
+    private void openSegment(long startLsn) throws IOException{
+        _segmentFile = new RandomAccessFile(segmentName(_baseName, startLsn), "rw");
+        _segmentFile.setLength(0);
+        _segmentStart = startLsn;
+    }
+
+    // flushes what is pending and stops the flusher
+    public void close(){
+        synchronized(_appendLock){
+            _closed = true;
+            _appendLock.notify();
+        }
+        try{
+            _flusher.join();
+            _segmentFile.close();
+        }catch(Exception e){
+            System.err.println(e);
+        }
+    }
+
+    private static String segmentName(String baseName, long startLsn){
+        return baseName + "." + startLsn;
+    }
+
+    // start lsns of the existing segments, oldest first
+    private static List<Long> listSegments(String baseName){
+        File baseFile = new File(baseName).getAbsoluteFile();
+        String prefix = baseFile.getName() + ".";
+        List<Long> segments = new ArrayList<>();
+        String[] names = baseFile.getParentFile().list();
+        if(names == null)
+            return segments;
+        for(String name : names){
+            if(!name.startsWith(prefix) || !name.substring(prefix.length()).matches("\\d+"))
+                continue;
+            segments.add(Long.parseLong(name.substring(prefix.length())));
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    // Applies the records at or after fromLsn to trie (which must not have a log attached yet) and returns the lsn the
+    // log ends at. A torn or corrupt record ends the log: it and anything after it are cut off.
+    public static long replay(String baseName, long fromLsn, Trie trie) throws IOException{
+        long endLsn = fromLsn;
+        boolean intact = true;
+        for(long segmentStart : listSegments(baseName)){
+            if(segmentStart < fromLsn)
+                continue;
+            // once the log is torn or has a gap, nothing after that point can be trusted
+            if(!intact || segmentStart != endLsn){
+                intact = false;
+                new File(segmentName(baseName, segmentStart)).delete();
+                continue;
+            }
+            try(RandomAccessFile segmentFile = new RandomAccessFile(segmentName(baseName, segmentStart), "rw")){
+                long validLength = replaySegment(segmentFile.getChannel(), trie);
+                if(validLength != segmentFile.length()){
+                    segmentFile.setLength(validLength);
+                    intact = false;
+                }
+                endLsn = segmentStart + validLength;
+            }
+        }
+        return endLsn;
+    }
+
+    private static long replaySegment(FileChannel channel, Trie trie) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        long position = 0, validLength = 0;
+        buffer.limit(0);
+        while(true){
+            if(buffer.remaining() < RECORD_HEADER_SIZE && !fill(channel, buffer, position, RECORD_HEADER_SIZE))
+                return validLength;
+            int payloadLength = buffer.getInt(buffer.position());
+            if(payloadLength < 1 || payloadLength > channel.size() - position - RECORD_HEADER_SIZE)
+                return validLength;
+            if(buffer.capacity() < RECORD_HEADER_SIZE + payloadLength)
+                buffer = grow(buffer, RECORD_HEADER_SIZE + payloadLength);
+            if(buffer.remaining() < RECORD_HEADER_SIZE + payloadLength
+                    && !fill(channel, buffer, position, RECORD_HEADER_SIZE + payloadLength))
+                return validLength;
+
+            buffer.getInt();
+            int storedCrc = buffer.getInt();
+            byte[] payload = new byte[payloadLength];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            if((int)crc.getValue() != storedCrc)
+                return validLength;
+
+            String word = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+            if(payload[0] == INSERT)
+                trie.insert(word);
+            else if(payload[0] == REMOVE)
+                trie.remove(word);
+            else
+                return validLength;
+            position += RECORD_HEADER_SIZE + payloadLength;
+            validLength = position;
+        }
+    }
+
+    // tops buffer up from the channel (position is the file offset of the buffer's read position); false at end of file
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, long position, int needed) throws IOException{
+        buffer.compact();
+        long readPosition = position + buffer.position();
+        while(buffer.position() < needed){
+            int read = channel.read(buffer, readPosition);
+            if(read < 0)
+                break;
+            readPosition += read;
+        }
+        buffer.flip();
+        return buffer.remaining() >= needed;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity){
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        grown.put(buffer);
+        grown.flip();
+        return grown;
+    }
+}
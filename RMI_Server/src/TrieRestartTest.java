@@ -0,0 +1,66 @@
+import java.io.File;
+import java.io.IOException;
+
+// Restarts a -fs trie over a frozen base, as ServerMain -fs -frozen does: java TrieRestartTest
+//
+// The delta comes back from the node store before the base is mounted again, so the second boot has to take a
+// non-empty delta, and a base frozen later (holding some of the delta's words) must not count those words twice.
+public class TrieRestartTest {
+    private static final String NAME = "Restart_Test";
+
+    private static int _failures;
+
+    private static void check(boolean condition, String message){
+        if(!condition){
+            ++_failures;
+            System.out.println(message);
+        }
+    }
+
+    private static Trie boot(File frozenFile) throws IOException{
+        Trie trie = new Trie(NAME, Trie.openNodeStore(NAME, NodeStore.ForcePolicy.NONE), false);
+        trie.setFrozenBase(FrozenTrie.load(frozenFile));
+        return trie;
+    }
+
+    public static void main(String[] args) throws IOException{
+        File storeFile = new File(Trie.getNodeStoreFilename(NAME));
+        File firstBase = File.createTempFile("restart", ".frz"), secondBase = File.createTempFile("restart", ".frz");
+        storeFile.delete();
+        try{
+            Trie baseWords = new Trie(NAME, null, false);
+            baseWords.insert("apple");
+            baseWords.insert("ape");
+            FrozenTrie.freeze(baseWords, firstBase);
+
+            Trie trie = boot(firstBase);
+            trie.insert("dog");
+            trie.insert("apple"); // a base word, nothing for the delta
+            trie.close();
+
+            trie = boot(firstBase);
+            check(trie.size() == 3, "after a restart size() is " + trie.size() + ", expected 3");
+            check(trie.query("dog") && trie.query("apple"), "after a restart a word is missing");
+            check(trie.count("a") == 2 && trie.count("d") == 1, "after a restart count(a) is " + trie.count("a")
+                    + " and count(d) is " + trie.count("d") + ", expected 2 and 1");
+            FrozenTrie.freeze(trie, secondBase);
+            trie.insert("cat");
+            trie.close();
+
+            // the new base has dog, which the delta still holds as well
+            trie = boot(secondBase);
+            check(trie.size() == 4, "on a newer base size() is " + trie.size() + ", expected 4");
+            check(trie.count("d") == 1 && trie.count("") == 4, "on a newer base count(d) is " + trie.count("d") + ", expected 1");
+            check(trie.query("cat") && trie.query("dog"), "on a newer base a word is missing");
+            trie.close();
+        }finally{
+            storeFile.delete();
+            firstBase.delete();
+            secondBase.delete();
+        }
+
+        System.out.println("-fs restarts over a frozen base: " + _failures + " failures");
+        if(_failures > 0)
+            System.exit(1);
+    }
+}
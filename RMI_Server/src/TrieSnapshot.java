@@ -0,0 +1,426 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+// Compact snapshots of a Trie for -wal. A snapshot is taken right after the log is rotated: every change logged
+// before the cut is already visible in memory, so the snapshot holds at least that state, and replaying the log from
+// the cut on top of it (inserts and removes of whole words, last one wins) gives back the exact word set. Once the
+// snapshot is safely on disk the older log segments are deleted.
+//
+// File: magic, version, cut lsn, root word flag, section count, then one section per child of the root:
+//   key, label, payload length, payload crc32, payload (the child's subtree, see encode)
+// Sections are independent, so they can be checked and decoded separately.
+// A trie with a BloomFilter also gets <snapshot>.bloom, filled from the words the snapshot holds and stamped with its
+// cut, so recovery can use it as is instead of refilling the filter word by word.
+public class TrieSnapshot {
+    private static final int MAGIC = 0x54534E50; // "TSNP"
+    private static final int VERSION = 1;
+
+    private Trie _trie;
+    private TrieLog _log;
+    private File _file;
+    private long _minLogBytes, _intervalMillis;
+    private Thread _thread;
+
+    // takes a snapshot whenever at least minLogBytes have been logged since the last one, checking every intervalMillis
+    public TrieSnapshot(Trie trie, TrieLog log, File file, long minLogBytes, long intervalMillis){
+        if(trie == null || log == null || file == null || minLogBytes < 0 || intervalMillis <= 0)
+            throw new IllegalArgumentException();
+        _trie = trie;
+        _log = log;
+        _file = file;
+        _minLogBytes = minLogBytes;
+        _intervalMillis = intervalMillis;
+    }
+
+    public void start(final long lastCut){
+        _thread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                long cut = lastCut;
+                try{
+                    while(!Thread.currentThread().isInterrupted()){
+                        Thread.sleep(_intervalMillis);
+                        if(_log.appendedLsn() - cut >= Math.max(1, _minLogBytes)){
+                            try{
+                                cut = snapshot();
+                            }catch(IOException e){
+                                System.err.println(e);
+                            }
+                        }
+                    }
+                }catch(InterruptedException e){}
+            }
+        });
+        _thread.setDaemon(true);
+        _thread.setName("TrieSnapshot");
+        _thread.start();
+    }
+
+    public void stop(){
+        if(_thread != null)
+            _thread.interrupt();
+    }
+
+    // rotates the log, writes a snapshot and truncates the log; returns the cut. Besides the background thread a
+    // bulk load takes one to persist what it attached, so one snapshot is taken at a time.
+    public synchronized long snapshot() throws IOException{
+        long cut = _log.rotate();
+        _log.awaitFlushed(cut); // the flusher has moved on to the new segment
+        write(_trie, _file, cut);
+        _log.truncateBefore(cut);
+        return cut;
+    }
+
+    public static void write(Trie trie, File file, long cut) throws IOException{
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        Trie.TrieNode root = trie.root();
+        ChildTable<Trie.TrieNode> children = root.children();
+        List<Integer> slots = new ArrayList<>();
+        for(int i = 0; i < children.slotCount(); ++i)
+            if(children.childAt(i) != null)
+                slots.add(i);
+
+        // built from the encoded sections rather than the live trie, so it matches the snapshot exactly
+        BloomFilter bloom = (trie.bloomFilter() == null) ? null : trie.bloomFilter().emptyCopy();
+        try(FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)){
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(cut);
+            out.writeBoolean(root.aword);
+            out.writeInt(slots.size());
+
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            for(int slot : slots){
+                section.reset();
+                encode(children.childAt(slot), new DataOutputStream(section));
+                CRC32 crc = new CRC32();
+                byte[] payload = section.toByteArray();
+                crc.update(payload, 0, payload.length);
+
+                out.writeChar(children.keyAt(slot));
+                writeLabel(out, children.labelAt(slot));
+                out.writeInt(payload.length);
+                out.writeInt((int)crc.getValue());
+                out.write(payload);
+                if(bloom != null)
+                    addWords(payload, new StringBuilder().append(children.keyAt(slot)).append(children.labelAt(slot)), bloom);
+            }
+            out.flush();
+            fileOutputStream.getFD().sync();
+        }
+        if(!temporaryFile.renameTo(file)){
+            file.delete();
+            if(!temporaryFile.renameTo(file))
+                throw new IOException("Unable to move " + temporaryFile + " to " + file);
+        }
+        if(bloom != null)
+            bloom.save(bloomFileOf(file), cut);
+    }
+
+    static File bloomFileOf(File snapshotFile){
+        return new File(snapshotFile.getPath() + ".bloom");
+    }
+
+    // Adds every word of an encoded subtree, whose node is reached over path, to bloom without building its nodes
+    private static void addWords(byte[] payload, StringBuilder path, BloomFilter bloom) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        List<Integer> remaining = new ArrayList<>(), pathLengths = new ArrayList<>();
+        addWord(in, path, bloom, remaining, pathLengths);
+        while(!remaining.isEmpty()){
+            int last = remaining.size() - 1;
+            if(remaining.get(last) == 0){
+                remaining.remove(last);
+                pathLengths.remove(last);
+                continue;
+            }
+            remaining.set(last, remaining.get(last) - 1);
+            path.setLength(pathLengths.get(last));
+            path.append(in.readChar()).append(readLabel(in));
+            addWord(in, path, bloom, remaining, pathLengths);
+        }
+    }
+
+    private static void addWord(DataInputStream in, StringBuilder path, BloomFilter bloom, List<Integer> remaining,
+                                List<Integer> pathLengths) throws IOException{
+        if(in.readBoolean())
+            bloom.add(path);
+        int childCount = readVarInt(in);
+        if(childCount > 0){
+            remaining.add(childCount);
+            pathLengths.add(path.length());
+        }
+    }
+
+    // Loads a snapshot into an empty trie and returns its cut, or 0 when there is no snapshot yet. The sections are
+    // read in one pass and then decoded by up to decodeThreads threads, one root subtree at a time.
+    public static long load(Trie trie, File file, int decodeThreads) throws IOException{
+        if(decodeThreads < 1)
+            throw new IllegalArgumentException("Need at least one decode thread: " + decodeThreads);
+        if(!file.exists())
+            return 0;
+
+        long cut;
+        List<Section> sections = new ArrayList<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a trie snapshot (bad magic or version): " + file);
+            cut = in.readLong();
+            if(in.readBoolean())
+                trie.restoreRootWord();
+            int sectionCount = in.readInt();
+            for(int i = 0; i < sectionCount; ++i){
+                Section section = new Section(trie, file);
+                section._key = in.readChar();
+                section._label = readLabel(in);
+                section._payload = new byte[in.readInt()];
+                section._crc = in.readInt();
+                in.readFully(section._payload);
+                sections.add(section);
+            }
+        }
+
+        if(decodeThreads == 1 || sections.size() < 2){
+            for(Section section : sections)
+                section.call();
+            return cut;
+        }
+
+        ExecutorService decoders = Executors.newFixedThreadPool(Math.min(decodeThreads, sections.size()));
+        try{
+            for(Future<Void> result : decoders.invokeAll(sections)){
+                try{
+                    result.get();
+                }catch(ExecutionException e){
+                    if(e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file);
+        }finally{
+            decoders.shutdownNow();
+        }
+        return cut;
+    }
+
+    // one root subtree as read from the file, decoded and attached by call()
+    private static class Section implements Callable<Void> {
+        private Trie _trie;
+        private File _file;
+        char _key;
+        char[] _label;
+        byte[] _payload;
+        int _crc;
+
+        Section(Trie trie, File file){
+            _trie = trie;
+            _file = file;
+        }
+
+        @Override
+        public Void call() throws IOException{
+            CRC32 crc = new CRC32();
+            crc.update(_payload, 0, _payload.length);
+            if((int)crc.getValue() != _crc)
+                throw new IOException("Snapshot section '" + _key + "' is corrupt: " + _file);
+
+            int[] wordCount = new int[1];
+            Trie.TrieNode child = decode(_trie, new DataInputStream(new ByteArrayInputStream(_payload)), wordCount);
+            _payload = null; // let the encoded copy go as soon as it is decoded
+            if(child != null)
+                _trie.attachRootChild(_key, _label, child, wordCount[0]);
+            return null;
+        }
+    }
+
+    // Pre-order, one entry per node: word flag and child count, then per child its key and label followed by the
+    // child's own entry. Iterative, since a plain trie is as deep as its longest word. An evicted subtree is copied
+    // over from the cold file as it is, without faulting it in. Returns the number of resident nodes written.
+    static int encode(Trie.TrieNode node, DataOutputStream out) throws IOException{
+        List<ChildTable<Trie.TrieNode>> tables = new ArrayList<>();
+        List<Integer> nextSlots = new ArrayList<>();
+        int nodeCount = writeNode(node, out, tables, nextSlots);
+        while(!tables.isEmpty()){
+            int top = tables.size() - 1;
+            ChildTable<Trie.TrieNode> children = tables.get(top);
+            int slot = nextSlots.get(top);
+            while(slot < children.slotCount() && children.childAt(slot) == null)
+                ++slot;
+            if(slot == children.slotCount()){
+                tables.remove(top);
+                nextSlots.remove(top);
+                continue;
+            }
+            nextSlots.set(top, slot + 1);
+            out.writeChar(children.keyAt(slot));
+            writeLabel(out, children.labelAt(slot));
+            nodeCount += writeNode(children.childAt(slot), out, tables, nextSlots);
+        }
+        return nodeCount;
+    }
+
+    private static int writeNode(Trie.TrieNode node, DataOutputStream out,
+                                 List<ChildTable<Trie.TrieNode>> tables, List<Integer> nextSlots) throws IOException{
+        byte[] coldEntry = node.coldEntry();
+        if(coldEntry != null){
+            // the word flag stays on the heap and may have changed since the eviction
+            out.writeBoolean(node.aword);
+            out.write(coldEntry, 1, coldEntry.length - 1);
+            return 1; // the stub itself, the rest was not resident
+        }
+
+        // the table is read once, the count written must match the children that follow
+        ChildTable<Trie.TrieNode> children = node.children();
+        out.writeBoolean(node.aword);
+        writeVarInt(out, children.size());
+        if(!children.isEmpty()){
+            tables.add(children);
+            nextSlots.add(0);
+        }
+        return 1;
+    }
+
+    // Returns null if the subtree holds no words. A snapshot can catch a remove before its prune has finished, so
+    // nodes that end up with neither a word nor children are dropped on the way in. Word counts are rebuilt on the way.
+    static Trie.TrieNode decode(Trie trie, DataInputStream in, int[] wordCount) throws IOException{
+        List<Trie.TrieNode> nodes = new ArrayList<>();
+        List<Integer> remaining = new ArrayList<>();
+        List<Character> keys = new ArrayList<>();
+        Trie.TrieNode top = readNode(trie, in, nodes, remaining, keys, (char)0, wordCount);
+        while(!nodes.isEmpty()){
+            int last = nodes.size() - 1;
+            Trie.TrieNode parent = nodes.get(last);
+            if(remaining.get(last) == 0){
+                nodes.remove(last);
+                remaining.remove(last);
+                char key = keys.remove(last);
+                ChildTable<Trie.TrieNode> children = parent.children;
+                for(int slot = 0; slot < children.slotCount(); ++slot)
+                    if(children.childAt(slot) != null)
+                        parent._subtreeWords += children.childAt(slot)._subtreeWords;
+                if(!parent.aword && !parent.hasChildren()){
+                    if(last == 0)
+                        return null;
+                    Trie.TrieNode grandparent = nodes.get(last - 1);
+                    grandparent.children = grandparent.children.without(key);
+                }
+                continue;
+            }
+            remaining.set(last, remaining.get(last) - 1);
+            char key = in.readChar();
+            char[] label = readLabel(in);
+            Trie.TrieNode child = readNode(trie, in, nodes, remaining, keys, key, wordCount);
+            if(child.aword || nodes.get(nodes.size() - 1) == child)
+                parent.children = parent.children.with(key, label, child); // not published yet, no lock needed
+        }
+        return (top.aword || top.hasChildren()) ? top : null;
+    }
+
+    private static Trie.TrieNode readNode(Trie trie, DataInputStream in, List<Trie.TrieNode> nodes, List<Integer> remaining,
+                                          List<Character> keys, char key, int[] wordCount) throws IOException{
+        Trie.TrieNode node = trie.newDetachedNode();
+        node.aword = in.readBoolean();
+        if(node.aword){
+            ++wordCount[0];
+            node._subtreeWords = 1; // the children's counts are added once they are all in
+        }
+        int childCount = readVarInt(in);
+        if(childCount > 0){
+            nodes.add(node);
+            remaining.add(childCount);
+            keys.add(key);
+        }
+        return node;
+    }
+
+    private static void writeLabel(DataOutputStream out, char[] label) throws IOException{
+        writeVarInt(out, label.length);
+        for(char ch : label)
+            out.writeChar(ch);
+    }
+
+    private static char[] readLabel(DataInputStream in) throws IOException{
+        char[] label = new char[readVarInt(in)];
+        for(int i = 0; i < label.length; ++i)
+            label[i] = in.readChar();
+        return label;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException{
+        while((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException{
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            int b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new EOFException("Malformed varint");
+    }
+
+    // Brings trie (empty, no log yet) back to its logged state from <baseName>.snapshot and <baseName>.log.*, then
+    // attaches a log that continues where the old one ended and starts taking snapshots in the background.
+    // With bloomExpectedWords > 0 a Bloom filter of that size is put in front of the trie before the log is replayed,
+    // the one saved with the snapshot if it matches. Prints how long each step took and how big the dictionary is.
+    public static TrieSnapshot recover(Trie trie, String baseName, boolean relaxed, int decodeThreads, long bloomExpectedWords,
+                                       long minLogBytes, long intervalMillis) throws IOException{
+        File snapshotFile = new File(baseName + ".snapshot");
+        long start = System.nanoTime();
+        long cut = load(trie, snapshotFile, decodeThreads);
+        int snapshotWords = trie.size();
+        if(bloomExpectedWords > 0){
+            BloomFilter bloom = null;
+            try{
+                bloom = BloomFilter.load(bloomFileOf(snapshotFile), cut, bloomExpectedWords);
+            }catch(IOException e){
+                System.err.println(e);
+            }
+            if(bloom != null)
+                trie.setBloomFilter(bloom);
+            else
+                trie.enableBloomFilter(bloomExpectedWords); // none saved, stale or a different size: refill it
+        }
+        long loaded = System.nanoTime();
+        long endLsn = TrieLog.replay(baseName + ".log", cut, trie);
+        long replayed = System.nanoTime();
+        TrieLog log = new TrieLog(baseName + ".log", endLsn, relaxed);
+        trie.setLog(log);
+
+        System.out.println("Recovered " + trie.size() + " words in " + (replayed - start) / 1000000 + " ms: "
+                + snapshotWords + " from the snapshot (" + snapshotFile.length() + " bytes, " + decodeThreads
+                + " decode threads) in " + (loaded - start) / 1000000 + " ms, then " + (endLsn - cut)
+                + " bytes of log in " + (replayed - loaded) / 1000000 + " ms");
+
+        TrieSnapshot snapshotter = new TrieSnapshot(trie, log, snapshotFile, minLogBytes, intervalMillis);
+        trie.setSnapshotter(snapshotter);
+        snapshotter.start(cut);
+        return snapshotter;
+    }
+}
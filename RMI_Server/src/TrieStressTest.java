@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Concurrent insert/query/remove against a reference history: java TrieStressTest [threads] [operations per thread]
+// runs it against a plain trie, a radix trie and a tiered one whose heap budget is small enough to keep it evicting.
+//
+// The words all have the same length over a small alphabet, so they share long prefixes (and the threads contend on
+// the same nodes) but none is a prefix of another, which makes query exact for them. Every word has one owner thread,
+// the only one to insert or remove it, so the owner's own model says what each of its calls must return. The owner
+// publishes each word's state as a change count, an in-flight bit and a present bit; any thread querying a word checks
+// the reply whenever the state read before and after the query shows no change of the word overlapping it, which is
+// when a linearizable trie has only one answer. At the end the trie has to hold exactly the words of the models, with
+// size() and every prefix count agreeing.
+public class TrieStressTest {
+    private static final String ALPHABET = "abcd";
+    private static final int WORD_LENGTH = 6;
+    private static final int OWN_OPERATION_PERCENT = 60; // the rest are queries of words other threads own
+    private static final long TIERED_HEAP_BYTES = 64 * 1024; // a few hundred nodes, far fewer than the words need
+
+    private Trie _trie;
+    private String[] _words;
+    private AtomicLongArray _states; // per word: change count << 2 | in flight << 1 | present
+    private AtomicInteger _failures = new AtomicInteger();
+
+    private TrieStressTest(Trie trie){
+        _trie = trie;
+        int wordCount = 1;
+        for(int i = 0; i < WORD_LENGTH; ++i)
+            wordCount *= ALPHABET.length();
+        _words = new String[wordCount];
+        for(int k = 0; k < wordCount; ++k){
+            char[] word = new char[WORD_LENGTH];
+            for(int i = 0, rest = k; i < WORD_LENGTH; ++i, rest /= ALPHABET.length())
+                word[i] = ALPHABET.charAt(rest % ALPHABET.length());
+            _words[k] = new String(word);
+        }
+        _states = new AtomicLongArray(wordCount);
+    }
+
+    private void fail(String message){
+        if(_failures.incrementAndGet() <= 20)
+            System.out.println(message);
+    }
+
+    // thread owns the words k with k % threadCount == thread
+    private void run(int thread, int threadCount, int operations, long seed){
+        Random random = new Random(seed);
+        boolean[] added = new boolean[1];
+        for(int n = 0; n < operations; ++n){
+            if(random.nextInt(100) >= OWN_OPERATION_PERCENT){
+                checkQuery(random.nextInt(_words.length));
+                continue;
+            }
+            int k = thread + threadCount * random.nextInt((_words.length - 1 - thread) / threadCount + 1);
+            long state = _states.get(k);
+            boolean present = (state & 1) != 0;
+            int operation = random.nextInt(4);
+            if(operation == 3){
+                if(_trie.query(_words[k]) != present)
+                    fail("owner query of " + _words[k] + " gave " + !present);
+                continue;
+            }
+            _states.set(k, state | 2);
+            boolean nowPresent = present;
+            if(operation == 0){
+                _trie.insertAll(new String[]{_words[k]}, added);
+                if(added[0] == present)
+                    fail("insert of " + _words[k] + " added " + added[0] + " with the word " + (present ? "there" : "absent"));
+                nowPresent = true;
+            }
+            else if(operation == 1){
+                // insert only says how many words there are, which the other threads keep changing
+                _trie.insert(_words[k]);
+                if(!_trie.query(_words[k]))
+                    fail("insert of " + _words[k] + " left it out");
+                nowPresent = true;
+            }
+            else{
+                boolean removed = _trie.remove(_words[k]);
+                if(removed != present)
+                    fail("remove of " + _words[k] + " gave " + removed + " with the word " + (present ? "there" : "absent"));
+                nowPresent = false;
+            }
+            _states.set(k, ((state >>> 2) + 1) << 2 | (nowPresent ? 1 : 0));
+        }
+    }
+
+    private void checkQuery(int k){
+        long before = _states.get(k);
+        boolean found = _trie.query(_words[k]);
+        long after = _states.get(k);
+        if(before == after && (before & 2) == 0 && found != ((before & 1) != 0))
+            fail("query of " + _words[k] + " gave " + found + " while no change of it was under way");
+    }
+
+    private void checkFinalState(){
+        TreeSet<String> expected = new TreeSet<>();
+        for(int k = 0; k < _words.length; ++k)
+            if((_states.get(k) & 1) != 0)
+                expected.add(_words[k]);
+        List<String> actual = new ArrayList<>();
+        for(Iterator<String> words = _trie.words("", null); words.hasNext(); )
+            actual.add(words.next());
+        if(!actual.equals(new ArrayList<>(expected)))
+            fail("the trie holds " + actual.size() + " words, the history " + expected.size());
+        if(_trie.size() != expected.size())
+            fail("size() is " + _trie.size() + ", the history has " + expected.size() + " words");
+        for(String word : _words)
+            for(int length = 1; length <= WORD_LENGTH; ++length){
+                String prefix = word.substring(0, length);
+                int count = expected.subSet(prefix, prefix + Character.MAX_VALUE).size();
+                if(_trie.count(prefix) != count){
+                    fail("count(" + prefix + ") is " + _trie.count(prefix) + ", the history has " + count);
+                    return;
+                }
+            }
+    }
+
+    // false if it failed
+    private static boolean run(String mode, Trie trie, int threadCount, final int operations) throws InterruptedException{
+        final TrieStressTest test = new TrieStressTest(trie);
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+        for(int t = 0; t < threadCount; ++t){
+            final int thread = t, count = threadCount;
+            threads[t] = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    test.run(thread, count, operations, 31L * thread + 7);
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads)
+            thread.join();
+        test.checkFinalState();
+
+        System.out.println(mode + ": " + threadCount + " threads x " + operations + " operations in "
+                + (System.nanoTime() - start) / 1000000 + " ms, " + test._words.length + " words, "
+                + test._failures.get() + " failures");
+        return test._failures.get() == 0;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException{
+        int threadCount = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+        if(threadCount < 1 || operations < 0)
+            throw new IllegalArgumentException("Usage: java TrieStressTest [threads] [operations per thread]");
+
+        boolean passed = run("plain", new Trie("Stress_Test", null, false), threadCount, operations);
+        passed &= run("radix", new Trie("Stress_Test", null, true), threadCount, operations);
+        File coldFile = File.createTempFile("stress", ".cold");
+        try{
+            Trie tiered = new Trie("Stress_Test", null, false);
+            tiered.enableTiering(coldFile, TIERED_HEAP_BYTES);
+            passed &= run("tiered", tiered, threadCount, operations);
+            System.out.println("tiered: " + tiered.tierStats());
+        }finally{
+            coldFile.delete();
+        }
+        if(!passed)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+// Hot/cold tiering for a Trie (-tiered). The nodes UNIT_DEPTH edges below the root head the units of eviction:
+// when more nodes are resident than the heap budget allows, a CLOCK hand sweeps over the units, gives every unit
+// that was used since its last visit a second chance, and evicts the others. Eviction appends the unit's subtree to a
+// cold file in TrieSnapshot's encoding and leaves the unit's node in place with an empty table (a stub); the first
+// TrieNode.children() call on a stub reads the subtree back in.
+//
+// Readers never lock. Eviction must not run in the middle of a change, so inserts and removes hold a shared stamp
+// that the evictor takes exclusively for each unit it evicts. Faulting in is serialized on the unit's monitor.
+// A unit that is evicted again without having changed since its fault-in points back at its old copy; a changed one
+// is appended anew, the cold file is never compacted.
+public class TrieTier {
+    static final int UNIT_DEPTH = 3;
+
+    private static final long BYTES_PER_NODE = 96;         // rough heap cost of a node with its table share
+    private static final long EVICTION_CHECK_PERIOD = 100;  // milliseconds
+    private static final double LOW_WATERMARK = 0.9;        // evict down to this share of the budget
+
+    private Trie _trie;
+    private RandomAccessFile _coldFile;
+    private FileChannel _coldChannel;
+    private long _coldEnd;                                  // evictor only
+    private long _budgetNodes;
+    private StampedLock _changeLock = new StampedLock();
+    private LongAdder _residentNodes = new LongAdder();
+    private LongAdder _hits = new LongAdder(), _misses = new LongAdder(), _evictions = new LongAdder();
+    private int[] _clockKeys = new int[UNIT_DEPTH];         // keys on the path to the CLOCK hand, evictor only
+    private Thread _evictor;
+
+    public TrieTier(Trie trie, File coldFile, long heapBudgetBytes) throws IOException{
+        if(trie == null || coldFile == null || heapBudgetBytes < BYTES_PER_NODE)
+            throw new IllegalArgumentException("Heap budget too small: " + heapBudgetBytes);
+        _trie = trie;
+        _budgetNodes = heapBudgetBytes / BYTES_PER_NODE;
+        _coldFile = new RandomAccessFile(coldFile, "rw");
+        _coldFile.setLength(0); // whatever was evicted last run is not referenced by anything any more
+        _coldChannel = _coldFile.getChannel();
+        Arrays.fill(_clockKeys, -1);
+    }
+
+    public void start(){
+        _evictor = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                while(!Thread.currentThread().isInterrupted()){
+                    LockSupport.parkNanos(EVICTION_CHECK_PERIOD * 1000000);
+                    if(_residentNodes.sum() > _budgetNodes)
+                        evictUntilUnderBudget();
+                }
+            }
+        });
+        _evictor.setDaemon(true);
+        _evictor.setName("TrieTier-evictor");
+        _evictor.start();
+    }
+
+    long beginChange(){return _changeLock.readLock();}
+
+    void endChange(long stamp){_changeLock.unlockRead(stamp);}
+
+    void addResidentNodes(int delta){_residentNodes.add(delta);}
+
+    // an operation passed through unit on its way down
+    void touch(Trie.TrieNode unit){
+        if(!unit.isCold())
+            _hits.increment();
+        if(!unit._referenced)
+            unit._referenced = true;
+    }
+
+    // An insert or remove is about to change the unit's subtree, so the copy in the cold file goes stale. The unit is
+    // faulted in first, otherwise a later fault-in would mark the copy clean again.
+    void touchForChange(Trie.TrieNode unit){
+        touch(unit);
+        unit.children();
+        if(unit._cleanOffset >= 0){
+            synchronized(unit){
+                unit._cleanOffset = -1;
+            }
+        }
+    }
+
+    ChildTable<Trie.TrieNode> faultIn(Trie.TrieNode node){
+        synchronized(node){
+            if(!node.isCold())
+                return node.children;
+            byte[] entry = readCold(node);
+            try{
+                Trie.TrieNode copy = TrieSnapshot.decode(_trie, new DataInputStream(new ByteArrayInputStream(entry)), new int[1]);
+                node.children = (copy == null) ? ChildTable.<Trie.TrieNode>empty() : copy.children;
+                if(copy != null)
+                    _residentNodes.decrement(); // the copy of the unit's own node is dropped
+            }catch(IOException e){
+                throw new IllegalStateException("Unable to read evicted subtree back in", e);
+            }
+            node._cleanOffset = node._coldOffset;
+            node._coldOffset = -1;
+            node._referenced = true;
+            _misses.increment();
+            if(_residentNodes.sum() > _budgetNodes)
+                LockSupport.unpark(_evictor); // faults can outrun the periodic check
+            return node.children;
+        }
+    }
+
+    // the encoded subtree of a stub, or null if it has been faulted in meanwhile
+    byte[] readCold(Trie.TrieNode node){
+        long offset;
+        int length;
+        do{
+            offset = node._coldOffset;
+            if(offset < 0)
+                return null;
+            length = node._coldLength;
+        }while(node._coldOffset != offset); // faulted in and evicted again meanwhile, offsets never repeat
+        ByteBuffer entry = ByteBuffer.allocate(length);
+        try{
+            while(entry.hasRemaining())
+                if(_coldChannel.read(entry, offset + entry.position()) < 0)
+                    throw new IOException("Cold file is truncated");
+        }catch(IOException e){
+            throw new IllegalStateException("Unable to read evicted subtree", e);
+        }
+        return entry.array();
+    }
+
+    private boolean evict(Trie.TrieNode unit) throws IOException{
+        long stamp = _changeLock.writeLock();
+        try{
+            synchronized(unit){
+                if(unit._removed || unit.isCold() || unit.children.isEmpty())
+                    return false;
+                int nodeCount;
+                if(unit._cleanOffset >= 0){
+                    // unchanged since it was read back in, the old copy will do
+                    nodeCount = countNodes(unit);
+                    unit._coldOffset = unit._cleanOffset;
+                }
+                else{
+                    ByteArrayOutputStream entry = new ByteArrayOutputStream();
+                    nodeCount = TrieSnapshot.encode(unit, new DataOutputStream(entry));
+                    byte[] bytes = entry.toByteArray();
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while(buffer.hasRemaining())
+                        _coldChannel.write(buffer, _coldEnd + buffer.position());
+                    unit._coldLength = bytes.length;
+                    unit._coldOffset = _coldEnd;
+                    _coldEnd += bytes.length;
+                }
+                unit._cleanOffset = -1;
+                unit.children = ChildTable.empty();
+                _residentNodes.add(-(nodeCount - 1));
+                _evictions.increment();
+                return true;
+            }
+        }finally{
+            _changeLock.unlockWrite(stamp);
+        }
+    }
+
+    // resident nodes in node's subtree, node included; only called with no change in progress
+    private static int countNodes(Trie.TrieNode node){
+        int count = 0;
+        ArrayDeque<Trie.TrieNode> pending = new ArrayDeque<>();
+        pending.push(node);
+        while(!pending.isEmpty()){
+            Trie.TrieNode next = pending.pop();
+            ++count;
+            ChildTable<Trie.TrieNode> children = next.children;
+            for(int slot = 0; slot < children.slotCount(); ++slot)
+                if(children.childAt(slot) != null)
+                    pending.push(children.childAt(slot));
+        }
+        return count;
+    }
+
+    // Moves the CLOCK hand until enough has been evicted. If two rounds are not enough (every unit keeps being used),
+    // the third one evicts regardless of reference bits so the budget still holds.
+    private void evictUntilUnderBudget(){
+        long target = (long)(_budgetNodes * LOW_WATERMARK);
+        int wraps = 0;
+        while(_residentNodes.sum() > target && wraps < 3){
+            Trie.TrieNode unit = advanceClock();
+            if(unit == null){
+                ++wraps;
+                continue;
+            }
+            if(unit._referenced && wraps < 2){
+                unit._referenced = false;
+                continue;
+            }
+            try{
+                evict(unit);
+            }catch(IOException e){
+                System.err.println(e);
+                return;
+            }
+        }
+    }
+
+    // next unit after the hand in key order, or null once the hand wraps around
+    private Trie.TrieNode advanceClock(){
+        Trie.TrieNode unit = nextUnit(_trie.root(), 0, _clockKeys[0] >= 0);
+        if(unit == null)
+            Arrays.fill(_clockKeys, -1);
+        return unit;
+    }
+
+    // first node UNIT_DEPTH - depth edges below node that comes after the hand, moving the hand onto it;
+    // onHand says whether node lies on the hand's path
+    private Trie.TrieNode nextUnit(Trie.TrieNode node, int depth, boolean onHand){
+        ChildTable<Trie.TrieNode> children = node.children();
+        for(int slot = 0; slot < children.slotCount(); ++slot){
+            Trie.TrieNode child = children.childAt(slot);
+            char key = children.keyAt(slot);
+            if(child == null || (onHand && key < _clockKeys[depth]))
+                continue;
+            boolean childOnHand = onHand && key == _clockKeys[depth];
+            if(depth == UNIT_DEPTH - 1){
+                if(childOnHand)
+                    continue;
+                _clockKeys[depth] = key;
+                return child;
+            }
+            Trie.TrieNode unit = nextUnit(child, depth + 1, childOnHand);
+            if(unit != null){
+                _clockKeys[depth] = key;
+                return unit;
+            }
+        }
+        return null;
+    }
+
+    public String stats(){
+        long hits = _hits.sum(), misses = _misses.sum();
+        return "resident=" + _residentNodes.sum() + " budget=" + _budgetNodes + " hits=" + hits + " misses=" + misses
+                + " hitRatio=" + (hits + misses == 0 ? "n/a" : String.format("%.4f", hits / (double)(hits + misses)))
+                + " evictions=" + _evictions.sum() + " coldFileBytes=" + _coldEnd;
+    }
+}
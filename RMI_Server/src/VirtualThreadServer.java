@@ -0,0 +1,102 @@
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Runs every accepted connection on its own virtual thread with the same blocking loop the WorkerThreads use.
+// There is no pool to grow, so the ThreadManager is not involved; instead a fixed number of permits bounds how many
+// connections are served at once and anything over the limit is closed, just like a full JobQueue.
+public class VirtualThreadServer {
+    private ServerSocket _listener;
+    private ExecutorService _executor;
+    private Semaphore _permits;
+    private int _concurrencyLimit;
+    private ConnectionHandler _connectionHandler;
+    private Set<Socket> _activeSockets;
+    private volatile boolean _stopped;
+
+    public VirtualThreadServer(ServerSocket listener, int concurrencyLimit, Trie trie){
+        if(listener == null || concurrencyLimit < 1 || trie == null)
+            throw new IllegalArgumentException();
+
+        _listener = listener;
+        _concurrencyLimit = concurrencyLimit;
+        _permits = new Semaphore(concurrencyLimit);
+        _activeSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+        _executor = newVirtualThreadExecutor(concurrencyLimit);
+        _connectionHandler = new ConnectionHandler(new CommandProcessor(trie), new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        });
+    }
+
+    // Virtual threads only exist from Java 21 on, so look the factory up at runtime and keep the build at the
+    // project's language level. Older JVMs still get a thread per connection, just not a cheap one, and are told so
+    // once here at startup: nothing -vt promises about cost holds for them.
+    private static ExecutorService newVirtualThreadExecutor(int concurrencyLimit){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Exception e){
+            System.err.println("-vt: virtual threads need Java 21, this is Java " + System.getProperty("java.version")
+                    + "; serving each connection on a platform thread instead (up to " + concurrencyLimit + " at once)");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void serve(){
+        try{
+            while (!_stopped) {
+                final Socket clientSocket = _listener.accept();
+                if(!_permits.tryAcquire()){
+                    // Over the concurrency limit, reject the client the same way a full job queue does
+                    try{clientSocket.close();}catch(Exception e){}
+                    continue;
+                }
+
+                _activeSockets.add(clientSocket);
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            _connectionHandler.processJob(clientSocket);
+                        } catch (InterruptedException Ie) {
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                        } finally {
+                            _activeSockets.remove(clientSocket);
+                            _permits.release();
+                        }
+                    }
+                });
+            }
+        }
+        catch(Exception e){
+            try{_listener.close();}catch(Exception ex){}
+        }
+        stop();
+    }
+
+    public boolean stopped(){return _stopped;}
+
+    public int concurrencyLimit(){return _concurrencyLimit;}
+
+    public int activeCount(){return _concurrencyLimit - _permits.availablePermits();}
+
+    public void stop(){
+        if(_stopped)
+            return;
+        _stopped = true;
+        try{_listener.close();}catch(Exception e){}
+        _executor.shutdownNow();
+        // Blocked socket reads do not notice interrupts on platform threads, closing the sockets releases them
+        for(Socket thisSocket : _activeSockets)
+            try{thisSocket.close();}catch(Exception e){}
+    }
+}
@@ -0,0 +1,162 @@
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// JobQueue with one deque per worker thread. The acceptor deals jobs out round-robin, preferring a worker that is
+// parked, and unparks only that worker. A worker takes from the front of its own deque and, once that is empty,
+// steals from the back of its peers' deques before parking, so a job dealt to a busy worker is still picked up.
+public class WorkStealingJobQueue extends JobQueue {
+    private CopyOnWriteArrayList<WorkerDeque> _workerDeques;
+    private ThreadLocal<WorkerDeque> _ownDeque;
+    private ConcurrentLinkedDeque<Socket> _unassignedJobs; // jobs that arrived while no worker was registered
+    private AtomicInteger _jobCount;
+    private AtomicInteger _nextDeque;
+    private AtomicInteger _nextWorkerIndex;
+
+    public WorkStealingJobQueue(int jobQueueSize){
+        super(jobQueueSize);
+        _workerDeques = new CopyOnWriteArrayList<>();
+        _ownDeque = new ThreadLocal<>();
+        _unassignedJobs = new ConcurrentLinkedDeque<>();
+        _jobCount = new AtomicInteger();
+        _nextDeque = new AtomicInteger();
+        _nextWorkerIndex = new AtomicInteger();
+    }
+
+    private static class WorkerDeque {
+        private ConcurrentLinkedDeque<Socket> _jobs = new ConcurrentLinkedDeque<>();
+        private Thread _owner;
+        private int _index; // in registration order, spreads out where the workers start stealing
+        private volatile boolean _parked, _retired;
+
+        WorkerDeque(Thread owner, int index){
+            _owner = owner;
+            _index = index;
+        }
+    }
+
+    @Override
+    public boolean addJob(Socket thisJob){
+        if(thisJob == null)
+            throw new IllegalArgumentException();
+
+        // If there is no more room in the job queue, let the caller know (return false);
+        int jobCount;
+        do{
+            jobCount = _jobCount.get();
+            if(jobCount >= maxSize())
+                return false;
+        }while(!_jobCount.compareAndSet(jobCount, jobCount + 1));
+
+        dealJob(thisJob);
+        return true;
+    }
+
+    private void dealJob(Socket thisJob){
+        Object[] workerDeques = _workerDeques.toArray();
+        if(workerDeques.length == 0){
+            _unassignedJobs.addLast(thisJob);
+            return;
+        }
+
+        // round-robin, but skip ahead to the next parked worker if there is one
+        int start = (_nextDeque.getAndIncrement() & Integer.MAX_VALUE) % workerDeques.length;
+        WorkerDeque target = (WorkerDeque) workerDeques[start];
+        for(int i = 0; i < workerDeques.length; ++i){
+            WorkerDeque thisDeque = (WorkerDeque) workerDeques[(start + i) % workerDeques.length];
+            if(thisDeque._parked){
+                target = thisDeque;
+                break;
+            }
+        }
+
+        target._jobs.addLast(thisJob);
+        if(target._retired){
+            // the owner exited while we were dealing, take the job back unless its drain already moved it
+            if(target._jobs.remove(thisJob))
+                dealJob(thisJob);
+        }
+        else if(target._parked)
+            LockSupport.unpark(target._owner);
+    }
+
+    @Override
+    public Socket fetchJob() throws InterruptedException{
+        WorkerDeque ownDeque = _ownDeque.get();
+        if(ownDeque == null){
+            ownDeque = new WorkerDeque(Thread.currentThread(), _nextWorkerIndex.getAndIncrement() & Integer.MAX_VALUE);
+            _ownDeque.set(ownDeque);
+            _workerDeques.add(ownDeque);
+        }
+
+        while(true){
+            Socket job = takeJob(ownDeque);
+            if(job != null)
+                return job;
+
+            // announce that we are about to park, then look once more so a job dealt in between is not missed
+            ownDeque._parked = true;
+            job = takeJob(ownDeque);
+            if(job != null){
+                ownDeque._parked = false;
+                return job;
+            }
+
+            LockSupport.park(this);
+            ownDeque._parked = false;
+            if(Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    private Socket takeJob(WorkerDeque ownDeque){
+        Socket job = ownDeque._jobs.pollFirst();
+        if(job == null)
+            job = _unassignedJobs.pollFirst();
+        if(job == null)
+            job = stealJob(ownDeque);
+        if(job != null)
+            _jobCount.decrementAndGet();
+        return job;
+    }
+
+    private Socket stealJob(WorkerDeque thief){
+        Object[] workerDeques = _workerDeques.toArray();
+        if(workerDeques.length == 0)
+            return null;
+
+        int start = thief._index % workerDeques.length;
+        for(int i = 0; i < workerDeques.length; ++i){
+            WorkerDeque victim = (WorkerDeque) workerDeques[(start + i) % workerDeques.length];
+            if(victim == thief)
+                continue;
+            Socket job = victim._jobs.pollLast();
+            if(job != null)
+                return job;
+        }
+        return null;
+    }
+
+    @Override
+    public void workerExited(){
+        WorkerDeque ownDeque = _ownDeque.get();
+        if(ownDeque == null)
+            return;
+        _ownDeque.remove();
+        _workerDeques.remove(ownDeque);
+        ownDeque._retired = true;
+
+        // anything still dealt to this worker goes back out to the others
+        Socket job;
+        while((job = ownDeque._jobs.pollFirst()) != null)
+            dealJob(job);
+    }
+
+    @Override
+    public boolean Any(){return _jobCount.get() > 0;}
+
+    @Override
+    public int length(){return _jobCount.get();}
+}
@@ -1,11 +1,17 @@
-import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WorkerThread extends Thread {
+    // states used by the ThreadPool's running/waiting bookkeeping
+    static final int WAITING = 0, RUNNING = 1, RETIRED = 2;
+
     private JobQueue _jobQueue;
     private ThreadPool _threadPool;
+    private ConnectionHandler _connectionHandler;
     private static int _noInstances = 0;
     private int _threadId;
+    private AtomicInteger _state;
+    private volatile boolean _retireInterruptSent; // set by retire once its interrupt has been delivered
 
 
     WorkerThread(JobQueue jobQueue, ThreadPool threadPool) {
@@ -14,7 +20,31 @@ public class WorkerThread extends Thread {
             throw new IllegalArgumentException();
         _jobQueue = jobQueue;
         _threadPool = threadPool;
+        _connectionHandler = new ConnectionHandler(new CommandProcessor(threadPool.getTrie()), new Runnable() {
+            @Override
+            public void run() {
+                _threadPool.stopPool();
+            }
+        });
         _threadId = _noInstances++;
+        _state = new AtomicInteger(WAITING);
+    }
+
+    boolean changeState(int expectedState, int newState){
+        return _state.compareAndSet(expectedState, newState);
+    }
+
+    int state(){return _state.get();}
+
+    // Called by the pool once it has moved this worker from WAITING to RETIRED, to wake it if it is parked for a job
+    void retire(){
+        interrupt();
+        _retireInterruptSent = true;
+    }
+
+    @Override
+    public int hashCode(){
+        return _threadId;
     }
 
 
@@ -34,9 +64,18 @@ public class WorkerThread extends Thread {
             try {
                 _threadPool.moveThreadToWaitingList(this);
                 Socket thisSocket = _jobQueue.fetchJob();
-                _threadPool.moveThreadToRunningList(this);
+                if(!_threadPool.moveThreadToRunningList(this)){
+                    // retired by the pool right as this job came in: serve it without the retire interrupt, then exit.
+                    // The pool sends that interrupt just after its CAS, so wait for it rather than have it land
+                    // part way through the connection
+                    while(!_retireInterruptSent)
+                        Thread.yield();
+                    Thread.interrupted();
+                    _connectionHandler.processJob(thisSocket);
+                    break;
+                }
 
-                processJob(thisSocket);
+                _connectionHandler.processJob(thisSocket);
                 if(_threadPool.stopped())
                     throw new InterruptedException();
             } catch (InterruptedException Ie) {
@@ -46,96 +85,7 @@ public class WorkerThread extends Thread {
                 break;
             }
         }
-    }
-
-    private void processJob(Socket clientSocket) throws Exception {
-        String output = "";
-        String command = "";
-        String[] tokens;
-        InterruptedException interrupt = null;
-        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-        while (!clientSocket.isClosed()) {
-            try {
-                output = "";
-                try {
-                    command = in.readLine();
-                    if (isInterrupted())
-                        throw new InterruptedException();
-                }
-                catch(NullPointerException Npe){
-                    throw new InterruptedIOException();
-                }
-
-                // The end of the stream has been reached (the connection was lost)
-                if(command == null)
-                    break;
-                if(command.equals("kill")){
-                    output = "Killing server thread ...";
-                    _threadPool.stopPool();
-                    break;
-                }
-
-                tokens = command.split(",");
-
-                if (tokens.length == 2) {
-                    // we actually have a command
-                    String parameter = tokens[1].toLowerCase();
-                    //int secondParameter = Integer.parseInt(tokens[2]);
-
-                    switch (tokens[0]) {
-                        case "insert":
-                            output = "" + _threadPool.getTrie().insert(parameter);
-                            break;
-                        case "query":
-                            output = "" +  _threadPool.getTrie().query(parameter);
-                            break;
-                        case "toString":
-                            output = "" +  _threadPool.getTrie().toString();
-                            break;
-                        default:
-                            output = "Unknown command: " + command;
-                    }
-                }
-                else
-                    output = "Error processing command: " + command;
-
-
-                if (isInterrupted())
-                    throw new InterruptedException();
-            } catch (NumberFormatException Fe) {
-                output = "Error parsing number in command \"" + command + "\": " + Fe.getMessage();
-            } catch (InterruptedIOException Ie) {
-                //output += "\nServer thread exiting...";
-                //interrupt = new InterruptedException();
-                break;
-            } catch (InterruptedException intEx) {
-                interrupt = intEx;
-                break;
-            } catch (IOException IoE) {
-                break;
-            }
-            catch(Exception ex){
-                ex.printStackTrace();
-            }
-
-            try {
-                out.write(output + "\n");
-                out.flush();
-            } catch (Exception e) {
-            }
-
-
-        }
-        try{
-            clientSocket.close();
-            in.close();
-            out.close();
-        }catch(Exception e){}
-
-        if (interrupt != null)
-            throw interrupt;
-
+        _jobQueue.workerExited();
+        _threadPool.workerExited(this);
     }
 }
\ No newline at end of file